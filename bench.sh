@@ -0,0 +1,7 @@
+#!/bin/sh
+
+cd "$(dirname "$0")"
+# all arguments are passed to JMH, i.e. "./bench.sh Tokenizer" runs only the tokenizer benchmarks
+export BACKEND_PRIORITY_CPU=100
+export BACKEND_PRIORITY_GPU=0
+mvn clean package -Pbench -DskipTests && java -jar target/benchmarks.jar "$@"
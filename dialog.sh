@@ -1,4 +1,9 @@
 #!/bin/sh
 
 cd "$(dirname "$0")"
-MAVEN_OPTS="-Xmx26G" mvn clean compile exec:java -Dexec.mainClass="dlchat.Main" -Ddlchat.dialog
\ No newline at end of file
+PARAMS=
+if [ -n "$1" ]
+then
+	PARAMS=-Ddlchat.model=$1
+fi
+MAVEN_OPTS="-Xmx26G" mvn clean compile exec:java -Dexec.mainClass="dlchat.Main" -Ddlchat.dialog $PARAMS
\ No newline at end of file
@@ -0,0 +1,77 @@
+package dlchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Minibatch assembly (batches/sec), the iterator that allocated the one-hot matrices for every row vs the reusable BatchBuilder buffers.
+ * The defaults are the training settings from Main, indexed=true is the layout with the decoder embedding (token indexes instead of the
+ * one-hot decoder input and labels). bucketed() builds the length bucketed batches that are trimmed to the longest row, those are smaller
+ * so compare it to reusedBuffers() with the tokens/sec reported by the training rather than by batches/sec alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8G")
+@State(Scope.Thread)
+public class BatchBenchmark {
+
+    private static final int LINES = 5000;
+    @Param("20000")
+    public int dictSize;
+    @Param("40")
+    public int rowSize;
+    @Param("32")
+    public int batchSize;
+    @Param({ "false", "true" })
+    public boolean indexed;
+    private LegacyCorpusIterator legacyIterator;
+    private CorpusIterator iterator;
+    private CorpusIterator bucketedIterator;
+    private int batches;
+    private int bucketedBatches;
+    private int batch;
+
+    @Setup
+    public void setup() {
+        TokenCorpus corpus = new SyntheticCorpus(dictSize).tokens(LINES, dictSize, rowSize);
+        legacyIterator = new LegacyCorpusIterator(corpus, batchSize, Integer.MAX_VALUE, dictSize, rowSize);
+        iterator = new CorpusIterator(corpus, batchSize, Integer.MAX_VALUE, dictSize, rowSize, indexed);
+        batches = iterator.totalBatches() - 1; // the last batch is smaller, skip it
+        bucketedIterator = new CorpusIterator(corpus, batchSize, Integer.MAX_VALUE, dictSize, rowSize, indexed);
+        bucketedIterator.setBucketing(5);
+        bucketedBatches = bucketedIterator.totalBatches();
+    }
+
+    @Benchmark
+    public MultiDataSet legacy() {
+        legacyIterator.setCurrentBatch(batch++ % batches);
+        return legacyIterator.next();
+    }
+
+    @Benchmark
+    public MultiDataSet reusedBuffers() {
+        iterator.setCurrentBatch(batch++ % batches);
+        return iterator.next();
+    }
+
+    @Benchmark
+    public MultiDataSet bucketed() {
+        bucketedIterator.setCurrentBatch(batch++ % bucketedBatches);
+        return bucketedIterator.next();
+    }
+
+}
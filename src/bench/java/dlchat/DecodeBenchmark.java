@@ -0,0 +1,102 @@
+package dlchat;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Response generation as done by Main.output() on the graph from Main.createComputationGraph() with random weights and a synthetic
+ * dictionary, nothing is trained or downloaded. The weights, the inputs and the sampler are seeded so every run decodes the same tokens.
+ * An untrained network stops at <eos> whenever it likes so the invocations are of different length, use the "tokens" counter (tokens/sec)
+ * rather than ops/sec to compare sample() and greedy(). The decoder caches are off, every invocation runs the network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    private static final long SEED = 42;
+    private static final int LINES = 100;
+    private static final int ROW_SIZE = 40;
+    private static final int BEAM_WIDTH = 4;
+    @Param({ "2000", "20000" })
+    public int dictSize;
+    @Param({ "false", "true" })
+    public boolean indexed;
+    private Decoder decoder;
+    private TokenCorpus inputs;
+    private Sampler sampler;
+    private Sampler greedy;
+    private final int[] reply = new int[ROW_SIZE];
+    private int line;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Main main = new Main();
+        main.dict.add("<unk>");
+        main.dict.add("<eos>");
+        main.dict.add("<go>");
+        for (int i = main.dict.size(); i < dictSize; ++i) {
+            main.dict.add("w" + i);
+        }
+        main.indexedDecoder = indexed;
+        main.createComputationGraph();
+        // the configuration has no seed, replace the initial weights with seeded ones of about the same scale
+        main.net.setParams(Nd4j.rand(1, main.net.numParams(), SEED).subi(0.5).muli(0.1));
+        decoder = new Decoder(main.net, dictSize);
+        inputs = new SyntheticCorpus(dictSize).tokens(LINES, dictSize, ROW_SIZE);
+        sampler = new Sampler(new Random(SEED), 1, 0, 1);
+        greedy = new Sampler(new Random(SEED), 1, 1, 1);
+    }
+
+    @Benchmark
+    public int sample(Tokens counter) {
+        int count = decoder.generate(inputs, line++ % LINES, sampler, ROW_SIZE, reply);
+        counter.tokens += count;
+        return count;
+    }
+
+    @Benchmark
+    public int greedy(Tokens counter) {
+        int count = decoder.generate(inputs, line++ % LINES, greedy, ROW_SIZE, reply);
+        counter.tokens += count;
+        return count;
+    }
+
+    @Benchmark
+    public List<Decoder.Candidate> beamSearch(Tokens counter) {
+        List<Decoder.Candidate> candidates = decoder.beamSearch(inputs, line++ % LINES, BEAM_WIDTH, 1, ROW_SIZE, 1, 0.6);
+        counter.tokens += candidates.get(0).tokens.length;
+        return candidates;
+    }
+
+}
@@ -0,0 +1,77 @@
+package dlchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Corpus ingestion from a synthetic movie_lines.txt: the counting pass (CorpusProcessor.start() with the frequencies), the indexing pass
+ * and the entire Main.createDictionary() (both passes and the dictionary selection, no cache file). threads=1 is the sequential reader,
+ * the others split the file into chunks. The file is written once per fork and is the same for every run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4G")
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+
+    private static final int LINES = 100000;
+    private static final int VOCAB = 30000;
+    private static final int ROW_SIZE = 40;
+    private static final int MAX_DICT = 20000;
+    @Param({ "1", "4" })
+    public int threads;
+    private File file;
+    private Vocabulary dict;
+
+    @Setup
+    public void setup() throws IOException {
+        file = new SyntheticCorpus(VOCAB).write(LINES);
+        dict = new Vocabulary();
+        dict.add("<unk>");
+        dict.add("<eos>");
+        dict.add("<go>");
+        dict.select(count(), MAX_DICT);
+    }
+
+    @Benchmark
+    public Vocabulary count() throws IOException {
+        CorpusProcessor processor = new CorpusProcessor(file.getPath(), ROW_SIZE, true);
+        processor.setParallelism(threads);
+        processor.start();
+        return processor.getFreq();
+    }
+
+    @Benchmark
+    public TokenCorpus index() throws IOException {
+        TokenCorpus corpus = new TokenCorpus(dict.size());
+        CorpusProcessor processor = new CorpusProcessor(file.getPath(), ROW_SIZE, false);
+        processor.setDict(dict);
+        processor.setCorpus(corpus);
+        processor.setParallelism(threads);
+        processor.start();
+        return corpus;
+    }
+
+    @Benchmark
+    public Vocabulary createDictionary() throws IOException {
+        Main main = new Main();
+        main.createDictionary(file.getPath(), null, threads);
+        return main.dict;
+    }
+
+}
@@ -0,0 +1,141 @@
+package dlchat;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+@SuppressWarnings("serial")
+public class LegacyCorpusIterator implements MultiDataSetIterator {
+
+    // CorpusIterator before BatchBuilder, allocates the one-hot matrices on the heap for every row, kept as the benchmark baseline
+
+    private TokenCorpus corpus;
+    private int batchSize;
+    private int batchesPerMacrobatch;
+    private int totalBatches;
+    private int totalMacroBatches;
+    private int currentBatch = 0;
+    private int currentMacroBatch = 0;
+    private int dictSize;
+    private int rowSize;
+
+    public LegacyCorpusIterator(TokenCorpus corpus, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize) {
+        this.corpus = corpus;
+        this.batchSize = batchSize;
+        this.batchesPerMacrobatch = batchesPerMacrobatch;
+        this.dictSize = dictSize;
+        this.rowSize = rowSize;
+        totalBatches = (int) Math.ceil((double) corpus.size() / batchSize);
+        totalMacroBatches = (int) Math.ceil((double) totalBatches / batchesPerMacrobatch);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return currentBatch < totalBatches && getMacroBatchByCurrentBatch() == currentMacroBatch;
+    }
+
+    private int getMacroBatchByCurrentBatch() {
+        return currentBatch / batchesPerMacrobatch;
+    }
+
+    @Override
+    public MultiDataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        int i = currentBatch * batchSize;
+        int currentBatchSize = Math.min(batchSize, corpus.size() - i - 1);
+        INDArray input = Nd4j.zeros(currentBatchSize, 1, rowSize);
+        INDArray prediction = Nd4j.zeros(currentBatchSize, dictSize, rowSize);
+        INDArray decode = Nd4j.zeros(currentBatchSize, dictSize, rowSize);
+        INDArray inputMask = Nd4j.zeros(currentBatchSize, rowSize);
+        // this mask is also used for the decoder input, the length is the same
+        INDArray predictionMask = Nd4j.zeros(currentBatchSize, rowSize);
+        for (int j = 0; j < currentBatchSize; j++) {
+            int inLength = corpus.length(i);
+            int predLength = corpus.length(i + 1) + 1; // add <eos> token
+            double[] rowIn = new double[inLength];
+            for (int k = 0; k < inLength; ++k) {
+                rowIn[k] = corpus.getReversed(i, k);
+            }
+            // replace the entire row in "input" using NDArrayIndex, it's faster than putScalar(); input is NOT made of one-hot vectors
+            // because of the embedding layer that accepts token indexes directly
+            input.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.point(0), NDArrayIndex.interval(0, inLength) },
+                    Nd4j.create(rowIn));
+            inputMask.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, inLength) }, Nd4j.ones(inLength));
+            predictionMask.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, predLength) },
+                    Nd4j.ones(predLength));
+            // prediction (output) and decode ARE one-hots though, I couldn't add an embedding layer on top of the decoder and I'm not sure
+            // it's a good idea either
+            double predOneHot[][] = new double[dictSize][predLength];
+            double decodeOneHot[][] = new double[dictSize][predLength];
+            decodeOneHot[Vocabulary.GO][0] = 1; // <go> token
+            for (int predIdx = 0; predIdx < predLength; ++predIdx) {
+                int pred = predIdx < predLength - 1 ? corpus.get(i + 1, predIdx) : Vocabulary.EOS; // the last token is <eos>
+                predOneHot[pred][predIdx] = 1;
+                if (predIdx < predLength - 1) { // put the same vals to decode with +1 offset except the last token that is <eos>
+                    decodeOneHot[pred][predIdx + 1] = 1;
+                }
+            }
+            prediction.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, dictSize),
+                    NDArrayIndex.interval(0, predLength) }, Nd4j.create(predOneHot));
+            decode.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, dictSize),
+                    NDArrayIndex.interval(0, predLength) }, Nd4j.create(decodeOneHot));
+            ++i;
+        }
+        ++currentBatch;
+        return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
+                new INDArray[] { inputMask, predictionMask }, new INDArray[] { predictionMask });
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+
+    }
+
+    @Override
+    public boolean resetSupported() {
+        // we don't want this iterator to be reset on each macrobatch pseudo-epoch
+        return false;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        // but we still can do it manually before the epoch starts
+        currentBatch = 0;
+        currentMacroBatch = 0;
+    }
+
+    public int batch() {
+        return currentBatch;
+    }
+
+    public int totalBatches() {
+        return totalBatches;
+    }
+
+    public void setCurrentBatch(int currentBatch) {
+        this.currentBatch = currentBatch;
+        currentMacroBatch = getMacroBatchByCurrentBatch();
+    }
+
+    public boolean hasNextMacrobatch() {
+        return getMacroBatchByCurrentBatch() < totalMacroBatches && currentMacroBatch < totalMacroBatches;
+    }
+
+    public void nextMacroBatch() {
+        ++currentMacroBatch;
+    }
+
+}
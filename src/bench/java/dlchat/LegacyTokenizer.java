@@ -0,0 +1,83 @@
+package dlchat;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// the regex/substring based tokenizer that CorpusProcessor used before Tokenizer, kept as the benchmark baseline
+public class LegacyTokenizer {
+
+    private Map<String, Double> dict;
+    private Map<String, Double> freq;
+    private int rowSize;
+
+    public LegacyTokenizer(Map<String, Double> dict, Map<String, Double> freq, int rowSize) {
+        this.dict = dict;
+        this.freq = freq;
+        this.rowSize = rowSize;
+    }
+
+    public void tokenizeLine(String lastLine, Collection<String> resultCollection, boolean addSpecials) {
+        String[] words = lastLine.split("[ \t]");
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                boolean specialFound = true;
+                while (specialFound && !word.isEmpty()) {
+                    for (int i = 0; i < word.length(); ++i) {
+                        int idx = CorpusProcessor.SPECIALS.indexOf(word.charAt(i));
+                        specialFound = false;
+                        if (idx >= 0) {
+                            String word1 = word.substring(0, i);
+                            if (!word1.isEmpty()) {
+                                addWord(resultCollection, word1);
+                            }
+                            if (addSpecials) {
+                                addWord(resultCollection, String.valueOf(word.charAt(i)));
+                            }
+                            word = word.substring(i + 1);
+                            specialFound = true;
+                            break;
+                        }
+                    }
+                }
+                if (!word.isEmpty()) {
+                    addWord(resultCollection, word);
+                }
+            }
+        }
+    }
+
+    private void addWord(Collection<String> coll, String word) {
+        if (coll != null) {
+            coll.add(word);
+        }
+        if (freq != null) {
+            Double count = freq.get(word);
+            if (count == null) {
+                freq.put(word, 1.0);
+            } else {
+                freq.put(word, count + 1);
+            }
+        }
+    }
+
+    public boolean wordsToIndexes(Collection<String> words, List<Double> wordIdxs) {
+        int i = rowSize;
+        for (String word : words) {
+            if (--i == 0) {
+                break;
+            }
+            Double wordIdx = dict.get(word);
+            if (wordIdx != null) {
+                wordIdxs.add(wordIdx);
+            } else {
+                wordIdxs.add(0.0);
+            }
+        }
+        if (!wordIdxs.isEmpty()) {
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,89 @@
+package dlchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Scaling of the data parallel training (ParallelTrainer) with the number of workers: every invocation trains one macrobatch of the
+ * synthetic corpus, the "examples" counter gives the line pairs per second. Compare it across the workers values, ideally it grows
+ * linearly. Every worker runs its own BLAS calls, for the pure data parallel scaling run it with one BLAS thread per worker
+ * ("OMP_NUM_THREADS=1 ./bench.sh ParallelTraining"). The network is the Main one with a small dictionary so the LSTMs take most of
+ * the time like in the real training.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8G")
+@State(Scope.Thread)
+public class ParallelTrainingBenchmark {
+
+    private static final int LINES = 20000;
+    private static final int DICT_SIZE = 2000;
+    private static final int ROW_SIZE = 40;
+    private static final int BATCH_SIZE = 32;
+    private static final int AVERAGING_FREQUENCY = 5;
+    @Param({ "1", "2", "4", "8" })
+    public int workers;
+    private ParallelTrainer trainer;
+    private CorpusIterator iterator;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Examples {
+        public long examples;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            examples = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Main main = new Main();
+        main.dict.add("<unk>");
+        main.dict.add("<eos>");
+        main.dict.add("<go>");
+        for (int i = main.dict.size(); i < DICT_SIZE; ++i) {
+            main.dict.add("w" + i);
+        }
+        main.indexedDecoder = true;
+        main.createComputationGraph();
+        TokenCorpus corpus = new SyntheticCorpus(DICT_SIZE).tokens(LINES, DICT_SIZE, ROW_SIZE);
+        // a macrobatch is one averaging round for every worker
+        iterator = new CorpusIterator(corpus, BATCH_SIZE, workers * AVERAGING_FREQUENCY, DICT_SIZE, ROW_SIZE, true);
+        trainer = new ParallelTrainer(main.net, workers, AVERAGING_FREQUENCY);
+    }
+
+    @TearDown
+    public void tearDown() {
+        trainer.shutdown();
+    }
+
+    @Benchmark
+    public void fitMacrobatch(Examples counter) {
+        if (!iterator.hasNextMacrobatch()) {
+            iterator.reset();
+        }
+        long before = iterator.examples();
+        trainer.fit(iterator);
+        iterator.nextMacroBatch();
+        counter.examples += iterator.examples() - before;
+    }
+
+}
@@ -0,0 +1,95 @@
+package dlchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Time to the first answer of the dialog: load the model with its dictionary from the file and generate one greedy response, the same
+ * steps as Main does with dlchat.dialog (ZIP, the checkpoint with the dictionary) or with dlchat.model (the exported formats). The model is
+ * the graph from Main.createComputationGraph() with random weights and a synthetic dictionary, the files are written once per fork. Every
+ * fork measures a cold JVM but the files are in the page cache, a cold disk adds the file size / disk speed on top.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 5, jvmArgsAppend = "-Xmx4G")
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    private static final long SEED = 42;
+    private static final int DICT_SIZE = 20000;
+    private static final int ROW_SIZE = 20;
+    @Param({ "ZIP", "FP32", "FP16", "INT8" })
+    public String format;
+    private File dir;
+    private File file;
+    private TokenCorpus input;
+
+    @Setup
+    public void setup() throws IOException {
+        Main main = new Main();
+        main.dict.add("<unk>");
+        main.dict.add("<eos>");
+        main.dict.add("<go>");
+        for (int i = main.dict.size(); i < DICT_SIZE; ++i) {
+            main.dict.add("w" + i);
+        }
+        main.indexedDecoder = true;
+        main.createComputationGraph();
+        main.net.setParams(Nd4j.rand(1, main.net.numParams(), SEED).subi(0.5).muli(0.1));
+        dir = Files.createTempDirectory("dlchat-startup").toFile();
+        if (format.equals("ZIP")) {
+            file = new File(dir, "rnn_train.zip");
+            Checkpointer checkpointer = new Checkpointer(file, 0, main.dict);
+            checkpointer.save(main.net);
+            checkpointer.await();
+        } else {
+            file = new File(dir, "rnn_infer.bin");
+            InferenceModel.export(main.net, main.dict, file, InferenceModel.Format.valueOf(format));
+        }
+        input = new SyntheticCorpus(DICT_SIZE).tokens(1, DICT_SIZE, ROW_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int firstAnswer() throws IOException {
+        Vocabulary dict = new Vocabulary();
+        ComputationGraph net;
+        if (format.equals("ZIP")) {
+            Checkpointer.readVocabulary(file, dict);
+            net = ModelSerializer.restoreComputationGraph(file, false);
+        } else {
+            net = InferenceModel.load(file, dict);
+        }
+        int[] reply = new int[ROW_SIZE];
+        return new Decoder(net, dict.size()).generate(input, 0, new Sampler(new Random(SEED), 1, 1, 1), ROW_SIZE, reply);
+    }
+
+}
@@ -0,0 +1,100 @@
+package dlchat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// deterministic Cornell-like dialog lines so that the benchmarks don't need the downloaded corpus and are comparable across runs
+public class SyntheticCorpus {
+
+    private static final String SEPARATOR = " +++$+++ ";
+    private static final long SEED = 42;
+    private final Random rng = new Random(SEED);
+    private final String[] words;
+
+    public SyntheticCorpus(int vocabSize) {
+        words = new String[vocabSize];
+        for (int i = 0; i < vocabSize; ++i) {
+            words[i] = word(i);
+        }
+    }
+
+    // base-26 word made of lowercase letters, some of them with an apostrophe like in "don't"
+    private static String word(int id) {
+        StringBuilder sb = new StringBuilder();
+        int i = id;
+        do {
+            sb.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        if (sb.length() > 2 && id % 7 == 0) {
+            sb.insert(sb.length() - 1, '\'');
+        }
+        return sb.toString();
+    }
+
+    // the text part of a line: Zipf-like word distribution, 1 to 30 words, punctuation here and there
+    public String text() {
+        int len = 1 + rng.nextInt(30);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; ++i) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            int idx = (int) Math.floor(Math.pow(words.length, rng.nextDouble())) - 1;
+            String word = words[idx];
+            sb.append(rng.nextInt(10) == 0 ? word.toUpperCase() : word);
+            int p = rng.nextInt(20);
+            if (p < 4) {
+                sb.append(CorpusProcessor.SPECIALS.charAt(rng.nextInt(CorpusProcessor.SPECIALS.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    public List<String> texts(int count) {
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(text());
+        }
+        return result;
+    }
+
+    // random token ids, the line lengths are within the limit that CorpusProcessor applies
+    public TokenCorpus tokens(int lines, int dictSize, int rowSize) {
+        TokenCorpus corpus = new TokenCorpus(dictSize);
+        int[] line = new int[rowSize];
+        for (int i = 0; i < lines; ++i) {
+            int len = 1 + rng.nextInt(rowSize - 1);
+            for (int j = 0; j < len; ++j) {
+                line[j] = 3 + rng.nextInt(dictSize - 3); // skip <unk>, <eos> and <go>
+            }
+            corpus.add(line, 0, len);
+        }
+        return corpus;
+    }
+
+    // full corpus file in the movie_lines.txt format with speakers sometimes saying several lines in a row
+    public File write(int lines) throws IOException {
+        File file = File.createTempFile("dlchat-bench", ".txt");
+        file.deleteOnExit();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            int speaker = 0;
+            for (int i = 0; i < lines; ++i) {
+                if (rng.nextInt(4) != 0) {
+                    speaker = 1 - speaker;
+                }
+                writer.write("L" + i + SEPARATOR + "u" + speaker + SEPARATOR + "m0" + SEPARATOR + "NAME" + speaker + SEPARATOR + text() + "\n");
+            }
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,154 @@
+package dlchat;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Tokenizing and indexing of dialog lines, the regex based implementation vs Tokenizer. Both the counting (first corpus pass) and the
+ * indexing (second pass and the dialog input) cases are measured. Every invocation processes the whole set of lines, the "tokens" counter
+ * shows tokens/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizerBenchmark {
+
+    private static final int LINES = 10000;
+    private static final int VOCAB = 20000;
+    private static final int ROW_SIZE = 40;
+    private List<String> lines;
+    private Map<String, Double> dict;
+    private Vocabulary vocab;
+    private long countedTokens; // tokens per invocation in the counting case (no specials), the same for both implementations
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        SyntheticCorpus synthetic = new SyntheticCorpus(VOCAB);
+        lines = new ArrayList<>();
+        for (String line : synthetic.texts(LINES)) {
+            lines.add(line.toLowerCase());
+        }
+        // index the most of the words, leave some unknown
+        Map<String, Double> freq = new HashMap<>();
+        new LegacyTokenizer(null, freq, ROW_SIZE).tokenizeLine(String.join(" ", lines), null, true);
+        List<String> words = new ArrayList<>();
+        LegacyTokenizer tokenizer = new LegacyTokenizer(null, null, ROW_SIZE);
+        for (String line : lines) {
+            tokenizer.tokenizeLine(line, words, false);
+        }
+        countedTokens = words.size();
+        dict = new HashMap<>();
+        for (String word : freq.keySet()) {
+            if (dict.size() < freq.size() * 9 / 10) {
+                dict.put(word, (double) dict.size());
+            }
+        }
+        vocab = new Vocabulary(dict.size());
+        String[] byIndex = new String[dict.size()];
+        for (Map.Entry<String, Double> entry : dict.entrySet()) {
+            byIndex[entry.getValue().intValue()] = entry.getKey();
+        }
+        for (String word : byIndex) {
+            vocab.add(word);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Double> countLegacy(Tokens counter) {
+        Map<String, Double> freq = new HashMap<>();
+        LegacyTokenizer tokenizer = new LegacyTokenizer(null, freq, ROW_SIZE);
+        for (String line : lines) {
+            tokenizer.tokenizeLine(line, null, false);
+        }
+        counter.tokens += countedTokens;
+        return freq;
+    }
+
+    @Benchmark
+    public CorpusProcessor countTokenizer(Tokens counter) {
+        Counter processor = new Counter(true);
+        for (String line : lines) {
+            processor.count(line);
+        }
+        counter.tokens += countedTokens;
+        return processor;
+    }
+
+    @Benchmark
+    public int indexLegacy(Tokens counter) {
+        LegacyTokenizer tokenizer = new LegacyTokenizer(dict, null, ROW_SIZE);
+        List<String> words = new ArrayList<>();
+        List<Double> wordIdxs = new ArrayList<>();
+        int sum = 0;
+        for (String line : lines) {
+            words.clear();
+            wordIdxs.clear();
+            tokenizer.tokenizeLine(line, words, true);
+            if (tokenizer.wordsToIndexes(words, wordIdxs)) {
+                sum += wordIdxs.get(0).intValue();
+                counter.tokens += wordIdxs.size();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public TokenCorpus indexTokenizer(Tokens counter) {
+        Counter processor = new Counter(false);
+        processor.setDict(vocab);
+        TokenCorpus corpus = new TokenCorpus(vocab.size(), LINES, LINES * ROW_SIZE);
+        for (String line : lines) {
+            processor.index(line, corpus);
+        }
+        counter.tokens += corpus.tokenCount();
+        return corpus;
+    }
+
+    // exposes the protected tokenizing methods
+    private static class Counter extends CorpusProcessor {
+
+        public Counter(boolean countFreq) {
+            super(new ByteArrayInputStream(new byte[0]), ROW_SIZE, countFreq);
+        }
+
+        public void count(String line) {
+            processLine(line);
+        }
+
+        public void index(String line, TokenCorpus corpus) {
+            lineToIndexes(line, corpus);
+        }
+    }
+
+}
@@ -0,0 +1,225 @@
+package dlchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class BatchBuilder {
+
+    /*
+     * Building a minibatch used to allocate two dense dictSize x rowSize one-hot matrices per row on the heap, wrap them in new INDArrays
+     * and copy them to the batch with an indexed put(), that's hundreds of megabytes of garbage per minibatch. Now the batch arrays are
+     * allocated once (per batch size) and reused. Only the cells that were set by the previous batch in the same arrays are zeroed and the
+     * new values are written directly to the data buffers by their offsets so assembling a batch allocates next to nothing.
+     *
+     * The arrays can't be reused right after the batch is returned though, net.fit() prefetches the batches asynchronously (2 batches in
+     * the queue, one more is being built while the queue is full and one is used by the network). So a slot is reused only RING builds
+     * after it was last used, when the network is guaranteed to be done with it.
+     *
+     * The batches may be shorter than rowSize (see the length bucketing in CorpusIterator), every batch shape (rows, input length, output
+     * length) gets its own slots. The slots are kept in a pool limited by the total size of their arrays, when it's over the limit the
+     * least recently used free slots are dropped. The limit is soft, the slots that may still be used by the network are never dropped.
+     *
+     * In the indexed layout (the decoder has its own embedding layer) the decoder input and the prediction labels are token indexes of
+     * shape [batch, 1, rowSize] just like the encoder input, the labels are used with LossSparseMCXENT. The legacy layout has one-hot
+     * [batch, dictSize, rowSize] tensors for both, it's used for the networks trained before the decoder embedding was added.
+     */
+
+    public static final int DEFAULT_RING = 5;
+    public static final long DEFAULT_POOL_BYTES = 512L << 20;
+    private final int dictSize;
+    private final int rowSize;
+    private final int ring;
+    private final boolean indexed;
+    private final long maxPoolBytes;
+    private final List<Slot> pool = new ArrayList<>();
+    private long poolBytes;
+    private long builds;
+
+    public BatchBuilder(int dictSize, int rowSize, boolean indexed) {
+        this(dictSize, rowSize, indexed, DEFAULT_RING, DEFAULT_POOL_BYTES);
+    }
+
+    public BatchBuilder(int dictSize, int rowSize, boolean indexed, int ring, long maxPoolBytes) {
+        this.dictSize = dictSize;
+        this.rowSize = rowSize;
+        this.indexed = indexed;
+        this.ring = ring;
+        this.maxPoolBytes = maxPoolBytes;
+    }
+
+    /*
+     * Builds a batch of count rows, row j is the pair of corpus lines inputLines[j] (encoder input) and inputLines[j] + 1 (the expected
+     * output). The tensors are rowSize steps long.
+     */
+    public MultiDataSet build(TokenCorpus corpus, int[] inputLines, int count) {
+        return build(corpus, inputLines, count, rowSize, rowSize);
+    }
+
+    // same but the input and output tensors are only as long as specified, the rows must fit
+    public MultiDataSet build(TokenCorpus corpus, int[] inputLines, int count, int inputLength, int outputLength) {
+        Slot slot = slot(count, inputLength, outputLength);
+        slot.clear();
+        for (int j = 0; j < count; ++j) {
+            slot.fill(j, corpus, inputLines[j]);
+        }
+        return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { slot.input, slot.decode }, new INDArray[] { slot.prediction },
+                new INDArray[] { slot.inputMask, slot.predictionMask }, new INDArray[] { slot.predictionMask });
+    }
+
+    // the number of time steps the row takes in the output tensors, the output line plus <eos>
+    public static int outputLength(TokenCorpus corpus, int inputLine) {
+        return corpus.length(inputLine + 1) + 1;
+    }
+
+    private synchronized Slot slot(int batchSize, int inputLength, int outputLength) {
+        long build = builds++;
+        Slot result = null;
+        for (Slot slot : pool) {
+            if (slot.fits(batchSize, inputLength, outputLength) && isFree(slot, build)) {
+                result = slot;
+                break;
+            }
+        }
+        if (result == null) {
+            result = new Slot(batchSize, inputLength, outputLength);
+            pool.add(result);
+            poolBytes += result.bytes;
+        }
+        result.lastUse = build;
+        while (poolBytes > maxPoolBytes) {
+            Slot lru = null;
+            for (Slot slot : pool) {
+                if (isFree(slot, build) && (lru == null || slot.lastUse < lru.lastUse)) {
+                    lru = slot;
+                }
+            }
+            if (lru == null) {
+                break;
+            }
+            pool.remove(lru);
+            poolBytes -= lru.bytes;
+        }
+        return result;
+    }
+
+    private boolean isFree(Slot slot, long build) {
+        return build - slot.lastUse >= ring;
+    }
+
+    private class Slot {
+        private final INDArray input;
+        private final INDArray decode;
+        private final INDArray prediction;
+        private final INDArray inputMask;
+        // this mask is also used for the decoder input, the length is the same
+        private final INDArray predictionMask;
+        private final int[] inLengths;
+        private final int[] predLengths;
+        // offsets of the one-hot cells set in decode and prediction (legacy layout only)
+        private final long[] decodeHot;
+        private final long[] predictionHot;
+        private int hotCount;
+        private final int inSteps;
+        private final int outSteps;
+        private final long bytes;
+        private long lastUse = Long.MIN_VALUE / 2;
+
+        public Slot(int batchSize, int inSteps, int outSteps) {
+            this.inSteps = inSteps;
+            this.outSteps = outSteps;
+            // all arrays are 'c' ordered so the element offset is computed from the indexes directly
+            input = Nd4j.create(new int[] { batchSize, 1, inSteps }, 'c').assign(0);
+            int tokenSize = indexed ? 1 : dictSize;
+            decode = Nd4j.create(new int[] { batchSize, tokenSize, outSteps }, 'c').assign(0);
+            prediction = Nd4j.create(new int[] { batchSize, tokenSize, outSteps }, 'c').assign(0);
+            inputMask = Nd4j.create(new int[] { batchSize, inSteps }, 'c').assign(0);
+            predictionMask = Nd4j.create(new int[] { batchSize, outSteps }, 'c').assign(0);
+            inLengths = new int[batchSize];
+            predLengths = new int[batchSize];
+            decodeHot = new long[indexed ? 0 : batchSize * outSteps];
+            predictionHot = new long[indexed ? 0 : batchSize * outSteps];
+            long elements = (long) input.length() + decode.length() + prediction.length() + inputMask.length() + predictionMask.length();
+            bytes = elements * input.data().getElementSize();
+        }
+
+        public boolean fits(int batchSize, int inSteps, int outSteps) {
+            return inLengths.length == batchSize && this.inSteps == inSteps && this.outSteps == outSteps;
+        }
+
+        // zero what the previous batch has set
+        public void clear() {
+            DataBuffer decodeData = decode.data();
+            DataBuffer predictionData = prediction.data();
+            for (int i = 0; i < hotCount; ++i) {
+                decodeData.put(decodeHot[i], 0);
+                predictionData.put(predictionHot[i], 0);
+            }
+            hotCount = 0;
+            DataBuffer inputData = input.data();
+            DataBuffer inputMaskData = inputMask.data();
+            DataBuffer predictionMaskData = predictionMask.data();
+            for (int j = 0; j < inLengths.length; ++j) {
+                long inOffset = (long) j * inSteps;
+                for (int t = 0; t < inLengths[j]; ++t) {
+                    inputData.put(inOffset + t, 0);
+                    inputMaskData.put(inOffset + t, 0);
+                }
+                long outOffset = (long) j * outSteps;
+                for (int t = 0; t < predLengths[j]; ++t) {
+                    predictionMaskData.put(outOffset + t, 0);
+                    if (indexed) {
+                        decodeData.put(outOffset + t, 0);
+                        predictionData.put(outOffset + t, 0);
+                    }
+                }
+                inLengths[j] = 0;
+                predLengths[j] = 0;
+            }
+        }
+
+        public void fill(int j, TokenCorpus corpus, int line) {
+            int inLength = corpus.length(line);
+            int predLength = outputLength(corpus, line);
+            if (inLength > inSteps || predLength > outSteps) {
+                throw new IllegalArgumentException("Line " + line + " doesn't fit in " + inSteps + "/" + outSteps + " steps");
+            }
+            inLengths[j] = inLength;
+            predLengths[j] = predLength;
+            long inOffset = (long) j * inSteps;
+            DataBuffer inputData = input.data();
+            DataBuffer inputMaskData = inputMask.data();
+            // input is NOT made of one-hot vectors because of the embedding layer that accepts token indexes directly, it's reversed
+            for (int t = 0; t < inLength; ++t) {
+                inputData.put(inOffset + t, corpus.getReversed(line, t));
+                inputMaskData.put(inOffset + t, 1);
+            }
+            long rowOffset = (long) j * outSteps;
+            DataBuffer predictionMaskData = predictionMask.data();
+            DataBuffer decodeData = decode.data();
+            DataBuffer predictionData = prediction.data();
+            long hotOffset = (long) j * dictSize * outSteps;
+            int decodeToken = Vocabulary.GO; // the decoder input is the output shifted by one step and starting with <go>
+            for (int t = 0; t < predLength; ++t) {
+                int pred = t < predLength - 1 ? corpus.get(line + 1, t) : Vocabulary.EOS;
+                predictionMaskData.put(rowOffset + t, 1);
+                if (indexed) {
+                    decodeData.put(rowOffset + t, decodeToken);
+                    predictionData.put(rowOffset + t, pred);
+                } else {
+                    decodeHot[hotCount] = hotOffset + (long) decodeToken * outSteps + t;
+                    predictionHot[hotCount] = hotOffset + (long) pred * outSteps + t;
+                    decodeData.put(decodeHot[hotCount], 1);
+                    predictionData.put(predictionHot[hotCount], 1);
+                    ++hotCount;
+                }
+                decodeToken = pred;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+package dlchat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nd4j.linalg.factory.Nd4j;
+
+public class BatchPipeline<T> {
+
+    /*
+     * DL4J prefetches the batches itself (AsyncMultiDataSetIterator) but it has one thread and it's restarted on every net.fit() call so
+     * its queue drains at every macrobatch end and the first batches of the next macrobatch are built while the network waits. This
+     * pipeline is owned by the iterator instead and runs independently of net.fit(): the worker threads claim the batch numbers in order,
+     * build the batches and put them to a reorder buffer, the consumer takes them strictly by the batch number so the result is the same
+     * as with the sequential building no matter which worker was faster. The workers stay at most depth batches ahead of the consumer
+     * (back-pressure) so they keep working while the training thread saves or tests the model between the macrobatches but don't run
+     * away with the memory.
+     *
+     * If the consumer asks for a batch other than the next one (the iterator was reset or moved) the pipeline is restarted from that
+     * batch. stop() waits for the workers to finish so the source can be safely changed after it returns.
+     */
+
+    public interface Source<T> {
+        // builds the batch, lines is a worker's own scratch buffer of bufferSize elements
+        T build(int batch, int[] lines);
+    }
+
+    private final Source<T> source;
+    private final int workers;
+    private final int depth;
+    private final int bufferSize;
+    private final Map<Integer, T> ready = new HashMap<>();
+    private Thread[] threads;
+    private int generation;
+    private int nextToBuild;
+    private int nextToTake;
+    private int end;
+    private RuntimeException error;
+    private long waits;
+    private long waitNanos;
+
+    public BatchPipeline(Source<T> source, int workers, int depth, int bufferSize) {
+        this.source = source;
+        this.workers = workers;
+        this.depth = depth;
+        this.bufferSize = bufferSize;
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    // returns the batch, end is the number of batches in the epoch (the workers don't go past it)
+    public T take(int batch, int end) {
+        synchronized (this) {
+            if (threads != null && batch == nextToTake && end == this.end) {
+                return await(batch);
+            }
+        }
+        stop();
+        start(batch, end);
+        synchronized (this) {
+            return await(batch);
+        }
+    }
+
+    private T await(int batch) {
+        T result = ready.remove(batch);
+        if (result == null) {
+            ++waits;
+            long waitStart = System.nanoTime();
+            while ((result = ready.remove(batch)) == null) {
+                if (error != null) {
+                    throw error;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for batch " + batch, e);
+                }
+            }
+            waitNanos += System.nanoTime() - waitStart;
+        }
+        nextToTake = batch + 1;
+        notifyAll();
+        return result;
+    }
+
+    private synchronized void start(int from, int end) {
+        nextToBuild = from;
+        nextToTake = from;
+        this.end = end;
+        error = null;
+        final int gen = generation;
+        // the batch arrays should be allocated on the same device as the training thread uses
+        final Integer device = Nd4j.getAffinityManager().getDeviceForCurrentThread();
+        threads = new Thread[workers];
+        for (int i = 0; i < workers; ++i) {
+            threads[i] = new Thread(() -> work(gen), "batch-builder-" + i);
+            threads[i].setDaemon(true);
+            Nd4j.getAffinityManager().attachThreadToDevice(threads[i], device);
+            threads[i].start();
+        }
+    }
+
+    private void work(int gen) {
+        int[] lines = new int[bufferSize];
+        while (true) {
+            int batch;
+            synchronized (this) {
+                while (gen == generation && nextToBuild < end && nextToBuild >= nextToTake + depth) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (gen != generation || nextToBuild >= end) {
+                    return;
+                }
+                batch = nextToBuild++;
+            }
+            T result;
+            try {
+                result = source.build(batch, lines);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    error = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                if (gen != generation) {
+                    return;
+                }
+                ready.put(batch, result);
+                notifyAll();
+            }
+        }
+    }
+
+    // stops the workers and waits for them, the built batches are dropped
+    public void stop() {
+        Thread[] old;
+        synchronized (this) {
+            ++generation;
+            old = threads;
+            threads = null;
+            ready.clear();
+            notifyAll();
+        }
+        if (old != null) {
+            for (Thread thread : old) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // the number of batches built and waiting for the consumer
+    public synchronized int queueDepth() {
+        return ready.size();
+    }
+
+    // how many times the consumer had to wait for a batch
+    public synchronized long waits() {
+        return waits;
+    }
+
+    public synchronized long waitNanos() {
+        return waitNanos;
+    }
+
+}
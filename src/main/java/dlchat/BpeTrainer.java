@@ -0,0 +1,286 @@
+package dlchat;
+
+import java.util.Arrays;
+
+public class BpeTrainer {
+
+    /*
+     * Learns the subword dictionary for SubwordTokenizer with byte pair encoding: every counted word is split into characters after the
+     * word start mark (SubwordTokenizer.WORD_START), then the most frequent pair of adjacent symbols (weighted by the word frequencies) is
+     * merged into a new symbol, again and again until the dictionary has the requested size. The rare words end up as a few pieces instead
+     * of <unk>, every character of the corpus is in the dictionary.
+     *
+     * The words are the distinct words from the counting pass, not the corpus lines, so a merge only touches the words that have the
+     * pair. The pair counts are kept in a primitive open addressing table (a pair is two symbol ids packed into a long) together with the
+     * words where the pair was seen. A merge subtracts the pairs of every such word, rewrites the word and adds its new pairs back, the
+     * other counts stay as they are. The best pair comes from a heap with lazy invalidation: an entry whose count doesn't match the table
+     * anymore is pushed again with the current count when it's popped. The ties are broken by the pair ids so the result is the same for
+     * the same corpus.
+     */
+
+    private static final long MIN_PAIR_COUNT = 2; // rarer pairs aren't worth a dictionary slot
+    private final Vocabulary dict;
+    private int[][] words; // the symbols of every distinct word
+    private int[] lengths;
+    private long[] freqs;
+    private final PairTable pairs = new PairTable();
+    private final PairHeap heap = new PairHeap();
+
+    private BpeTrainer(Vocabulary dict) {
+        this.dict = dict;
+    }
+
+    /*
+     * Adds the characters of the counted words and the merged subwords to dict (that has the special tokens already) until it has size
+     * entries or there is nothing left to merge, returns the number of merges. The subwords get the frequencies of their use in the
+     * counted words.
+     */
+    public static int learn(Vocabulary counted, Vocabulary dict, int size) {
+        BpeTrainer trainer = new BpeTrainer(dict);
+        trainer.split(counted);
+        int merges = 0;
+        while (dict.size() < size && trainer.mergeBest()) {
+            ++merges;
+        }
+        trainer.countSymbols();
+        return merges;
+    }
+
+    private void split(Vocabulary counted) {
+        int start = dict.add(SubwordTokenizer.WORD_START);
+        words = new int[counted.size()][];
+        lengths = new int[counted.size()];
+        freqs = new long[counted.size()];
+        for (int w = 0; w < counted.size(); ++w) {
+            String word = counted.word(w);
+            int[] symbols = new int[word.length() + 1];
+            symbols[0] = start;
+            for (int i = 0; i < word.length(); ++i) {
+                symbols[i + 1] = dict.add(word.substring(i, i + 1));
+            }
+            words[w] = symbols;
+            lengths[w] = symbols.length;
+            freqs[w] = counted.freq(w);
+            countPairs(w, freqs[w]);
+        }
+        for (int slot = 0; slot < pairs.keys.length; ++slot) {
+            if (pairs.keys[slot] != PairTable.EMPTY) {
+                heap.push(pairs.keys[slot], pairs.counts[slot]);
+            }
+        }
+    }
+
+    private boolean mergeBest() {
+        long pair;
+        long count;
+        while (true) {
+            if (heap.size == 0) {
+                return false;
+            }
+            pair = heap.topPair();
+            long heapCount = heap.topCount();
+            heap.pop();
+            count = pairs.count(pair);
+            if (count == heapCount) {
+                break;
+            }
+            if (count > 0) {
+                heap.push(pair, count); // it went down since that entry was pushed
+            }
+        }
+        if (count < MIN_PAIR_COUNT) {
+            return false;
+        }
+        int a = (int) (pair >>> 32);
+        int b = (int) pair;
+        int merged = dict.add(dict.word(a) + dict.word(b));
+        int slot = pairs.slot(pair);
+        int[] occurrences = pairs.words[slot];
+        int occurrenceCount = pairs.wordCounts[slot];
+        for (int i = 0; i < occurrenceCount; ++i) {
+            int w = occurrences[i];
+            if (i > 0 && w == occurrences[i - 1] || !contains(w, a, b)) {
+                continue; // the word has been rewritten since it was added to the list
+            }
+            countPairs(w, -freqs[w]);
+            int[] symbols = words[w];
+            int length = 0;
+            for (int j = 0; j < lengths[w]; ++j) {
+                if (j + 1 < lengths[w] && symbols[j] == a && symbols[j + 1] == b) {
+                    symbols[length++] = merged;
+                    ++j;
+                } else {
+                    symbols[length++] = symbols[j];
+                }
+            }
+            lengths[w] = length;
+            countPairs(w, freqs[w]);
+            for (int j = 0; j + 1 < length; ++j) {
+                if (symbols[j] == merged || symbols[j + 1] == merged) {
+                    long newPair = pair(symbols[j], symbols[j + 1]);
+                    heap.push(newPair, pairs.count(newPair));
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(int w, int a, int b) {
+        int[] symbols = words[w];
+        for (int j = 0; j + 1 < lengths[w]; ++j) {
+            if (symbols[j] == a && symbols[j + 1] == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void countPairs(int w, long freq) {
+        int[] symbols = words[w];
+        for (int j = 0; j + 1 < lengths[w]; ++j) {
+            pairs.add(pair(symbols[j], symbols[j + 1]), freq, freq > 0 ? w : -1);
+        }
+    }
+
+    private void countSymbols() {
+        for (int w = 0; w < words.length; ++w) {
+            for (int j = 0; j < lengths[w]; ++j) {
+                dict.count(words[w][j], freqs[w]);
+            }
+        }
+    }
+
+    private static long pair(int a, int b) {
+        return (long) a << 32 | b & 0xffffffffL;
+    }
+
+    // pair -> count and the words where it was added, open addressing with linear probing, the pairs are never removed
+    private static class PairTable {
+        private static final long EMPTY = -1;
+        private long[] keys = new long[1 << 16];
+        private long[] counts = new long[keys.length];
+        private int[][] words = new int[keys.length][];
+        private int[] wordCounts = new int[keys.length];
+        private int size;
+
+        {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        public long count(long pair) {
+            int slot = slot(pair);
+            return keys[slot] == EMPTY ? 0 : counts[slot];
+        }
+
+        // adds to the count, w (if not negative) is added to the words of the pair unless it's the last one there
+        public void add(long pair, long count, int w) {
+            int slot = slot(pair);
+            if (keys[slot] == EMPTY) {
+                keys[slot] = pair;
+                words[slot] = new int[2];
+                if (++size > keys.length / 2) {
+                    rehash();
+                    slot = slot(pair);
+                }
+            }
+            counts[slot] += count;
+            if (w >= 0 && (wordCounts[slot] == 0 || words[slot][wordCounts[slot] - 1] != w)) {
+                if (wordCounts[slot] == words[slot].length) {
+                    words[slot] = Arrays.copyOf(words[slot], wordCounts[slot] * 2);
+                }
+                words[slot][wordCounts[slot]++] = w;
+            }
+        }
+
+        public int slot(long pair) {
+            int mask = keys.length - 1;
+            long h = pair * 0x9e3779b97f4a7c15L;
+            int slot = (int) (h ^ h >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != pair) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            long[] oldCounts = counts;
+            int[][] oldWords = words;
+            int[] oldWordCounts = wordCounts;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            counts = new long[keys.length];
+            words = new int[keys.length][];
+            wordCounts = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; ++i) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                    words[slot] = oldWords[i];
+                    wordCounts[slot] = oldWordCounts[i];
+                }
+            }
+        }
+    }
+
+    // max heap of (count, pair), the larger count wins, then the smaller pair
+    private static class PairHeap {
+        private long[] counts = new long[1 << 16];
+        private long[] pairs = new long[counts.length];
+        private int size;
+
+        public void push(long pair, long count) {
+            if (size == counts.length) {
+                counts = Arrays.copyOf(counts, size * 2);
+                pairs = Arrays.copyOf(pairs, size * 2);
+            }
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (!before(count, pair, counts[parent], pairs[parent])) {
+                    break;
+                }
+                counts[pos] = counts[parent];
+                pairs[pos] = pairs[parent];
+                pos = parent;
+            }
+            counts[pos] = count;
+            pairs[pos] = pair;
+        }
+
+        public long topPair() {
+            return pairs[0];
+        }
+
+        public long topCount() {
+            return counts[0];
+        }
+
+        public void pop() {
+            long count = counts[--size];
+            long pair = pairs[size];
+            int pos = 0;
+            int half = size >>> 1;
+            while (pos < half) {
+                int child = 2 * pos + 1;
+                if (child + 1 < size && before(counts[child + 1], pairs[child + 1], counts[child], pairs[child])) {
+                    ++child;
+                }
+                if (!before(counts[child], pairs[child], count, pair)) {
+                    break;
+                }
+                counts[pos] = counts[child];
+                pairs[pos] = pairs[child];
+                pos = child;
+            }
+            counts[pos] = count;
+            pairs[pos] = pair;
+        }
+
+        private static boolean before(long count1, long pair1, long count2, long pair2) {
+            return count1 != count2 ? count1 > count2 : pair1 < pair2;
+        }
+    }
+
+}
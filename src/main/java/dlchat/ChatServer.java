@@ -0,0 +1,95 @@
+package dlchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ChatServer {
+
+    /*
+     * A minimal HTTP front end for InferenceScheduler, the JDK built-in server is enough for a local service and needs no dependencies.
+     *
+     * POST /chat with the phrase as the UTF-8 body returns the response as text/plain. GET /stats returns the latency and throughput
+     * stats. The handlers don't wait for the response, it's sent from the responder pool when the scheduler completes the request so the
+     * number of concurrent requests is not limited by the number of threads.
+     */
+
+    private final Vocabulary dict;
+    private final InferenceScheduler scheduler;
+    private final ResponseGenerator generator; // only to tokenize, the decoding is done by the scheduler
+    private final int rowSize;
+    private final ExecutorService responders = Executors.newFixedThreadPool(4);
+    private HttpServer server;
+
+    public ChatServer(Vocabulary dict, InferenceScheduler scheduler, ResponseGenerator generator, int rowSize) {
+        this.dict = dict;
+        this.scheduler = scheduler;
+        this.generator = generator;
+        this.rowSize = rowSize;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 128);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/chat", this::chat);
+        server.createContext("/stats", exchange -> respond(exchange, 200, scheduler.stats()));
+        scheduler.start();
+        server.start();
+        System.out.println("Listening on port " + port);
+    }
+
+    private void chat(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "POST the phrase to /chat");
+            return;
+        }
+        int[] input = generator.tokenize(read(exchange.getRequestBody()));
+        if (input.length == 0) {
+            respond(exchange, 400, "No words in the input");
+            return;
+        }
+        scheduler.submit(input, rowSize).whenCompleteAsync((tokens, error) -> {
+            try {
+                if (error != null) {
+                    respond(exchange, 500, error.toString());
+                    return;
+                }
+                int count = 0;
+                while (count < tokens.length && tokens[count] != Vocabulary.EOS) {
+                    ++count;
+                }
+                respond(exchange, 200, dict.text(tokens, count));
+            } catch (IOException e) {
+                System.out.println("Couldn't send the response: " + e);
+            }
+        }, responders);
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = is.read(buf)) > 0) {
+            bos.write(buf, 0, len);
+        }
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void respond(HttpExchange exchange, int code, String text) throws IOException {
+        byte[] bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+}
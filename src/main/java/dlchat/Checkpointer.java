@@ -0,0 +1,204 @@
+package dlchat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.updater.graph.ComputationGraphUpdater;
+import org.nd4j.linalg.api.concurrency.AffinityManager;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class Checkpointer {
+
+    /*
+     * ModelSerializer.writeModel() runs on the training thread and the training stops until the whole zip is compressed and written. Here
+     * the training thread only copies the flattened parameters and the updater state and gets the configuration JSON, the zip is written by
+     * a background thread while the training goes on. The copies go to the same two arrays every time (the previous save is done with them
+     * by then) so the snapshots don't leave hundreds of megabytes of off-heap garbage behind. The file layout is the same as
+     * ModelSerializer writes so restoreComputationGraph() loads it as usual.
+     *
+     * The zip is written to a temporary file first and then atomically renamed to the model file so the model file is always complete
+     * even if the process is killed during the save. The previous versions are kept as name.bak.1.zip (the most recent) to
+     * name.bak.N.zip, the older ones are deleted.
+     *
+     * Only one save runs at a time, save() returns false and does nothing if the previous one is still being written.
+     *
+     * The dictionary goes to the zip too (an extra entry ModelSerializer ignores) so the dialog and the server can start from the zip
+     * without processing the corpus, see readVocabulary(). It doesn't change during the training so it's serialized once.
+     */
+
+    private static final String CONFIGURATION_ENTRY = "configuration.json";
+    private static final String COEFFICIENTS_ENTRY = "coefficients.bin";
+    private static final String UPDATER_ENTRY = "updaterState.bin";
+    private static final String VOCABULARY_ENTRY = "vocabulary.bin";
+    private final File file;
+    private final int keep;
+    private final byte[] vocabulary;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "checkpointer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> pending;
+    private INDArray paramsCopy;
+    private INDArray updaterCopy;
+
+    public Checkpointer(File file, int keep, Vocabulary dict) {
+        this.file = file;
+        this.keep = keep;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(bos)) {
+            dict.write(dos);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        vocabulary = bos.toByteArray();
+    }
+
+    // fills the empty dictionary from the model zip, returns false if the zip has no dictionary (saved by an older version)
+    public static boolean readVocabulary(File file, Vocabulary dict) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry entry = zip.getEntry(VOCABULARY_ENTRY);
+            if (entry == null) {
+                return false;
+            }
+            byte[] bytes;
+            try (InputStream is = zip.getInputStream(entry)) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max((int) entry.getSize(), 32));
+                byte[] buf = new byte[1 << 16];
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    bos.write(buf, 0, n);
+                }
+                bytes = bos.toByteArray();
+            }
+            dict.read(ByteBuffer.wrap(bytes));
+            return true;
+        }
+    }
+
+    public synchronized boolean save(ComputationGraph net) {
+        if (pending != null && !pending.isDone()) {
+            return false;
+        }
+        long snapshotStart = System.nanoTime();
+        String configuration = net.getConfiguration().toJson();
+        INDArray params = paramsCopy = snapshot(net.params(), paramsCopy);
+        ComputationGraphUpdater updater = net.getUpdater();
+        boolean hasUpdater = updater != null && updater.getStateViewArray() != null;
+        if (hasUpdater) {
+            updaterCopy = snapshot(updater.getStateViewArray(), updaterCopy);
+        }
+        INDArray updaterState = hasUpdater ? updaterCopy : null;
+        System.out.println("Model snapshot taken in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - snapshotStart) + " ms");
+        pending = executor.submit(() -> {
+            long writeStart = System.nanoTime();
+            try {
+                write(configuration, params, updaterState);
+                System.out.println("Model saved to " + file + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - writeStart) + " ms");
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Saving the model failed: " + e);
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    // waits for the save in progress if any
+    public synchronized void await() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // copies array to copy if it has the same length, otherwise to a new array
+    static INDArray snapshot(INDArray array, INDArray copy) {
+        if (copy != null && copy.length() == array.length()) {
+            copy.assign(array);
+        } else {
+            copy = array.dup();
+        }
+        // get it to the host memory right away, the writer thread may not be attached to the same device
+        Nd4j.getAffinityManager().ensureLocation(copy, AffinityManager.Location.HOST);
+        return copy;
+    }
+
+    private void write(String configuration, INDArray params, INDArray updaterState) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(fos, 1 << 20))) {
+            DataOutputStream dos = new DataOutputStream(zos);
+            zos.putNextEntry(new ZipEntry(CONFIGURATION_ENTRY));
+            dos.write(configuration.getBytes(StandardCharsets.UTF_8));
+            dos.flush();
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry(COEFFICIENTS_ENTRY));
+            Nd4j.write(params, dos);
+            dos.flush();
+            zos.closeEntry();
+            if (updaterState != null) {
+                zos.putNextEntry(new ZipEntry(UPDATER_ENTRY));
+                Nd4j.write(updaterState, dos);
+                dos.flush();
+                zos.closeEntry();
+            }
+            zos.putNextEntry(new ZipEntry(VOCABULARY_ENTRY));
+            zos.write(vocabulary);
+            zos.closeEntry();
+            zos.finish();
+            zos.flush();
+            fos.getFD().sync();
+        }
+        rotate();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // shifts the backups by one and makes the current model the first backup, the model file itself stays in place
+    private void rotate() throws IOException {
+        if (!file.exists() || keep <= 0) {
+            return;
+        }
+        Files.deleteIfExists(backup(keep).toPath());
+        for (int i = keep - 1; i >= 1; --i) {
+            File backup = backup(i);
+            if (backup.exists()) {
+                Files.move(backup.toPath(), backup(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        try {
+            Files.createLink(backup(1).toPath(), file.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(file.toPath(), backup(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public File backup(int n) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String backupName = dot < 0 ? name + ".bak." + n : name.substring(0, dot) + ".bak." + n + name.substring(dot);
+        return new File(file.getAbsoluteFile().getParentFile(), backupName);
+    }
+
+}
@@ -0,0 +1,139 @@
+package dlchat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class CorpusCache {
+
+    /*
+     * Building the dictionary takes two full passes over the corpus (count the frequencies, then convert the words to indexes) and it's
+     * done on every launch. The result only depends on the corpus file and a few constants so it's written to a binary file once and then
+     * memory mapped on the next launches. The file starts with a key that is a hash of the corpus contents and the parameters, if anything
+     * changes the key doesn't match and the cache is rebuilt.
+     *
+     * Layout (big endian): magic, version, key (32 bytes), dictionary size, dictionary words (length + UTF-8 bytes, in index order), word
+     * frequencies (long per word), then the corpus (see TokenCorpus.write()).
+     */
+
+    private static final int MAGIC = 0x444c4343; // "DLCC"
+    private static final int VERSION = 1;
+    private static final int KEY_SIZE = 32;
+    private File file;
+    private byte[] key;
+    private TokenCorpus corpus;
+
+    public CorpusCache(File file, byte[] key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    // hash of the corpus file and everything that affects the dictionary and the token indexes
+    public static byte[] key(File corpusFile, Object... params) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buf = new byte[1 << 20];
+        try (InputStream is = new FileInputStream(corpusFile)) {
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                digest.update(buf, 0, read);
+            }
+        }
+        digest.update(String.valueOf(VERSION).getBytes(StandardCharsets.UTF_8));
+        for (Object param : params) {
+            digest.update((byte) 0); // separator so that the parameters can't be shifted into each other
+            digest.update(String.valueOf(param).getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+
+    // fills the empty dictionary and returns true if the cache is valid, the dictionary is left empty otherwise
+    public boolean load(Vocabulary dict) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 8 + KEY_SIZE || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return false;
+            }
+            byte[] fileKey = new byte[KEY_SIZE];
+            buf.get(fileKey);
+            if (!Arrays.equals(fileKey, key)) {
+                return false;
+            }
+            int dictSize = buf.getInt();
+            List<String> words = new ArrayList<>(dictSize);
+            byte[] wordBuf = new byte[256];
+            for (int i = 0; i < dictSize; ++i) {
+                int len = buf.getInt();
+                if (len > wordBuf.length) {
+                    wordBuf = new byte[len];
+                }
+                buf.get(wordBuf, 0, len);
+                words.add(new String(wordBuf, 0, len, StandardCharsets.UTF_8));
+            }
+            long[] freqs = new long[dictSize];
+            for (int i = 0; i < dictSize; ++i) {
+                freqs[i] = buf.getLong();
+            }
+            TokenCorpus loaded = TokenCorpus.read(buf);
+            // the whole file is parsed, a broken one must not leave half of the words in the dictionary
+            for (int i = 0; i < dictSize; ++i) {
+                dict.count(dict.add(words.get(i)), freqs[i]);
+            }
+            corpus = loaded;
+        } catch (RuntimeException e) {
+            // truncated or otherwise broken file, it will be rebuilt
+            System.out.println("Corpus cache is corrupted: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    public void save(Vocabulary dict, TokenCorpus corpus) throws IOException {
+        this.corpus = corpus;
+        // write to a temporary file first so that an interrupted save never leaves a broken cache with a valid header
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.write(key);
+            os.writeInt(dict.size());
+            for (int i = 0; i < dict.size(); ++i) {
+                byte[] bytes = dict.word(i).getBytes(StandardCharsets.UTF_8);
+                os.writeInt(bytes.length);
+                os.write(bytes);
+            }
+            for (int i = 0; i < dict.size(); ++i) {
+                os.writeLong(dict.freq(i));
+            }
+            corpus.write(os);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public TokenCorpus getCorpus() {
+        return corpus;
+    }
+
+}
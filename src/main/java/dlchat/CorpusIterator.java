@@ -1,20 +1,15 @@
 package dlchat;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
-import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
-import org.nd4j.linalg.indexing.NDArrayIndex;
 
 @SuppressWarnings("serial")
-public class CorpusIterator implements MultiDataSetIterator {
+public class CorpusIterator implements TrainingIterator {
 
     /*
      * Motivation: I want to get asynchronous data iteration while not blocking on net.fit() until the end of epoch. I want to checkpoint
@@ -23,25 +18,60 @@ public class CorpusIterator implements MultiDataSetIterator {
      * 
      * Macrobatch is a group of minibatches. The iterator is modified so that it reports the end of data when it exhausts a macrobatch. Then
      * it advances (manually) to the next macrobatch.
+     * 
+     * By default the corpus is iterated sequentially and every batch is padded to rowSize time steps. With bucketing the line pairs are
+     * grouped by the input and output length (bucketWidth tokens per bucket) so the rows of a batch have similar lengths, and the batch
+     * tensors are only as long as the longest input and output in the batch. The LSTMs don't have to run all rowSize steps under the
+     * masks then. The pairs are shuffled inside the buckets and the batch order is shuffled too so the network doesn't see all the short
+     * lines first. The shuffle depends on the epoch number only so the batch numbers (and dlchat.shift) stay valid across restarts. The
+     * number of batches doesn't depend on the epoch either.
+     * 
+     * With setPipeline() the batches are built by a pool of threads ahead of time and DL4J's prefetch is turned off, see BatchPipeline.
+     * 
+     * setPairs() limits the iteration to the first line pairs of the corpus, the rest is held out for the validation (see Validator).
+     * 
+     * For the data parallel training split() hands out the batches of the current macrobatch to several shards that are iterated by
+     * different threads, see ParallelTrainer.
      */
 
-    private List<List<Double>> corpus;
+    private TokenCorpus corpus;
     private int batchSize;
+    private int pairs; // line pairs to iterate, pair i is line i and line i + 1
     private int batchesPerMacrobatch;
     private int totalBatches;
     private int totalMacroBatches;
     private int currentBatch = 0;
     private int currentMacroBatch = 0;
-    private int dictSize;
+    private BatchBuilder batchBuilder;
+    private int[] batchLines;
     private int rowSize;
+    private int bucketWidth;
+    private int[] planLines; // pair input lines in the batch order (bucketing only)
+    private int[] planStarts; // batch i takes planLines[planStarts[i]]..planLines[planStarts[i + 1] - 1]
+    private final AtomicLong tokens = new AtomicLong(); // real (unmasked) input and output tokens in the returned batches
+    private final AtomicLong steps = new AtomicLong(); // time steps in the returned batches including the padding
+    private final AtomicLong examples = new AtomicLong(); // line pairs (batch rows) in the returned batches
+    private int dictSize;
+    private boolean indexedDecoder;
+    private BatchPipeline<Batch> pipeline;
+    private BatchBuilder[] shardBuilders = new BatchBuilder[0]; // reused by the shards with the same number across the macrobatches
 
-    public CorpusIterator(List<List<Double>> corpus, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize) {
+    public CorpusIterator(TokenCorpus corpus, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize, boolean indexedDecoder) {
         this.corpus = corpus;
         this.batchSize = batchSize;
         this.batchesPerMacrobatch = batchesPerMacrobatch;
-        this.dictSize = dictSize;
+        batchBuilder = new BatchBuilder(dictSize, rowSize, indexedDecoder);
         this.rowSize = rowSize;
-        totalBatches = (int) Math.ceil((double) corpus.size() / batchSize);
+        this.dictSize = dictSize;
+        this.indexedDecoder = indexedDecoder;
+        batchLines = new int[batchSize];
+        setPairs(corpus.size() - 1);
+    }
+
+    // only the pairs 0..pairs - 1 are iterated, call before setBucketing()
+    public void setPairs(int pairs) {
+        this.pairs = pairs;
+        totalBatches = (pairs + batchSize - 1) / batchSize;
         totalMacroBatches = (int) Math.ceil((double) totalBatches / batchesPerMacrobatch);
     }
 
@@ -59,50 +89,213 @@ public class CorpusIterator implements MultiDataSetIterator {
         return next(batchSize);
     }
 
+    /*
+     * Builds the batches with the given number of worker threads, up to depth batches ahead of the consumer. The workers keep going
+     * across the macrobatch ends, see BatchPipeline. Call shutdown() when the iterator isn't needed anymore.
+     */
+    public void setPipeline(int workers, int depth) {
+        shutdown();
+        // the buffers of every queued batch and of every batch being built are in use, plus the ones the network holds
+        batchBuilder = new BatchBuilder(dictSize, rowSize, indexedDecoder, depth + workers + BatchBuilder.DEFAULT_RING,
+                BatchBuilder.DEFAULT_POOL_BYTES);
+        pipeline = workers > 0 ? new BatchPipeline<>((batch, lines) -> build(batch, lines, batchBuilder), workers, depth, batchSize)
+                : null;
+    }
+
     @Override
-    public MultiDataSet next(int num) {
-        int i = currentBatch * batchSize;
-        int currentBatchSize = Math.min(batchSize, corpus.size() - i - 1);
-        INDArray input = Nd4j.zeros(currentBatchSize, 1, rowSize);
-        INDArray prediction = Nd4j.zeros(currentBatchSize, dictSize, rowSize);
-        INDArray decode = Nd4j.zeros(currentBatchSize, dictSize, rowSize);
-        INDArray inputMask = Nd4j.zeros(currentBatchSize, rowSize);
-        // this mask is also used for the decoder input, the length is the same
-        INDArray predictionMask = Nd4j.zeros(currentBatchSize, rowSize);
-        for (int j = 0; j < currentBatchSize; j++) {
-            List<Double> rowIn = new ArrayList<>(corpus.get(i));
-            Collections.reverse(rowIn);
-            List<Double> rowPred = new ArrayList<>(corpus.get(i + 1));
-            rowPred.add(1.0); // add <eos> token
-            // replace the entire row in "input" using NDArrayIndex, it's faster than putScalar(); input is NOT made of one-hot vectors
-            // because of the embedding layer that accepts token indexes directly
-            input.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.point(0), NDArrayIndex.interval(0, rowIn.size()) },
-                    Nd4j.create(ArrayUtils.toPrimitive(rowIn.toArray(new Double[0]))));
-            inputMask.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, rowIn.size()) }, Nd4j.ones(rowIn.size()));
-            predictionMask.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, rowPred.size()) },
-                    Nd4j.ones(rowPred.size()));
-            // prediction (output) and decode ARE one-hots though, I couldn't add an embedding layer on top of the decoder and I'm not sure
-            // it's a good idea either
-            double predOneHot[][] = new double[dictSize][rowPred.size()];
-            double decodeOneHot[][] = new double[dictSize][rowPred.size()];
-            decodeOneHot[2][0] = 1; // <go> token
-            int predIdx = 0;
-            for (Double pred : rowPred) {
-                predOneHot[pred.intValue()][predIdx] = 1;
-                if (predIdx < rowPred.size() - 1) { // put the same vals to decode with +1 offset except the last token that is <eos>
-                    decodeOneHot[pred.intValue()][predIdx + 1] = 1;
-                }
-                ++predIdx;
+    public void shutdown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    /*
+     * Enables the length bucketing, every bucket takes bucketWidth input lengths x bucketWidth output lengths. The batch plan is made
+     * for the first epoch, call setEpoch() before every epoch to reshuffle it.
+     */
+    public void setBucketing(int bucketWidth) {
+        this.bucketWidth = bucketWidth;
+        setEpoch(1);
+        totalBatches = planStarts.length - 1;
+        totalMacroBatches = (int) Math.ceil((double) totalBatches / batchesPerMacrobatch);
+    }
+
+    @Override
+    public void setEpoch(int epoch) {
+        if (bucketWidth <= 0) {
+            return;
+        }
+        if (pipeline != null) {
+            pipeline.stop(); // the workers may be reading the plan
+        }
+        Random rng = new Random(epoch);
+        int bucketsPerSide = (rowSize + bucketWidth - 1) / bucketWidth;
+        int[] bucketStarts = new int[bucketsPerSide * bucketsPerSide + 1];
+        for (int i = 0; i < pairs; ++i) {
+            ++bucketStarts[bucket(i, bucketsPerSide) + 1];
+        }
+        for (int b = 1; b < bucketStarts.length; ++b) {
+            bucketStarts[b] += bucketStarts[b - 1];
+        }
+        // counting sort by the bucket, the pairs keep the corpus order inside the bucket and are shuffled right after that
+        int[] sorted = new int[pairs];
+        int[] fill = bucketStarts.clone();
+        for (int i = 0; i < pairs; ++i) {
+            sorted[fill[bucket(i, bucketsPerSide)]++] = i;
+        }
+        int batches = 0;
+        for (int b = 0; b + 1 < bucketStarts.length; ++b) {
+            shuffle(sorted, bucketStarts[b], bucketStarts[b + 1], rng);
+            batches += (bucketStarts[b + 1] - bucketStarts[b] + batchSize - 1) / batchSize;
+        }
+        // cut the buckets into batches and shuffle the batch order
+        int[] batchStarts = new int[batches];
+        int[] batchEnds = new int[batches];
+        int batch = 0;
+        for (int b = 0; b + 1 < bucketStarts.length; ++b) {
+            for (int start = bucketStarts[b]; start < bucketStarts[b + 1]; start += batchSize) {
+                batchStarts[batch] = start;
+                batchEnds[batch++] = Math.min(start + batchSize, bucketStarts[b + 1]);
             }
-            prediction.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, dictSize),
-                    NDArrayIndex.interval(0, rowPred.size()) }, Nd4j.create(predOneHot));
-            decode.put(new INDArrayIndex[] { NDArrayIndex.point(j), NDArrayIndex.interval(0, dictSize),
-                    NDArrayIndex.interval(0, rowPred.size()) }, Nd4j.create(decodeOneHot));
-            ++i;
         }
+        int[] order = new int[batches];
+        for (int i = 0; i < batches; ++i) {
+            order[i] = i;
+        }
+        shuffle(order, 0, batches, rng);
+        planLines = new int[pairs];
+        planStarts = new int[batches + 1];
+        int pos = 0;
+        for (int i = 0; i < batches; ++i) {
+            planStarts[i] = pos;
+            int b = order[i];
+            System.arraycopy(sorted, batchStarts[b], planLines, pos, batchEnds[b] - batchStarts[b]);
+            pos += batchEnds[b] - batchStarts[b];
+        }
+        planStarts[batches] = pos;
+    }
+
+    private int bucket(int line, int bucketsPerSide) {
+        int in = Math.max(corpus.length(line) - 1, 0) / bucketWidth;
+        int out = (BatchBuilder.outputLength(corpus, line) - 1) / bucketWidth;
+        return in * bucketsPerSide + out;
+    }
+
+    private static void shuffle(int[] arr, int from, int to, Random rng) {
+        for (int i = to - 1; i > from; --i) {
+            int j = from + rng.nextInt(i - from + 1);
+            int t = arr[i];
+            arr[i] = arr[j];
+            arr[j] = t;
+        }
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        Batch batch = pipeline != null ? pipeline.take(currentBatch, totalBatches) : build(currentBatch, batchLines, batchBuilder);
         ++currentBatch;
-        return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
-                new INDArray[] { inputMask, predictionMask }, new INDArray[] { predictionMask });
+        return count(batch);
+    }
+
+    private MultiDataSet count(Batch batch) {
+        tokens.addAndGet(batch.tokens);
+        steps.addAndGet(batch.steps);
+        examples.addAndGet(batch.rows);
+        return batch.data;
+    }
+
+    /*
+     * Splits the rest of the current macrobatch between count shards, shard i takes every count-th batch starting from the i-th one. The
+     * iterator moves to the end of the macrobatch right away (so batch() and dlchat.shift work as usual), the shards may then be iterated
+     * concurrently, one thread per shard. Every shard builds the batches to its own buffers. Don't use it together with the pipeline.
+     */
+    public List<Shard> split(int count) {
+        if (shardBuilders.length != count) {
+            shardBuilders = new BatchBuilder[count];
+            for (int i = 0; i < count; ++i) {
+                shardBuilders[i] = new BatchBuilder(dictSize, rowSize, indexedDecoder);
+            }
+        }
+        int end = Math.min(totalBatches, (currentMacroBatch + 1) * batchesPerMacrobatch);
+        List<Shard> result = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new Shard(shardBuilders[i], currentBatch + i, end, count));
+        }
+        currentBatch = Math.max(currentBatch, end);
+        return result;
+    }
+
+    public class Shard {
+        private final BatchBuilder builder;
+        private final int[] lines = new int[batchSize];
+        private final int end;
+        private final int stride;
+        private int batch;
+
+        private Shard(BatchBuilder builder, int first, int end, int stride) {
+            this.builder = builder;
+            this.batch = first;
+            this.end = end;
+            this.stride = stride;
+        }
+
+        public boolean hasNext() {
+            return batch < end;
+        }
+
+        public MultiDataSet next() {
+            Batch result = build(batch, lines, builder);
+            batch += stride;
+            return count(result);
+        }
+    }
+
+    // thread safe as long as every thread has its own lines buffer, a shared builder needs a ring that covers all the batches in use
+    private Batch build(int batch, int[] lines, BatchBuilder batchBuilder) {
+        int count;
+        int inputLength;
+        int outputLength;
+        if (planLines == null) {
+            int i = batch * batchSize;
+            count = Math.min(batchSize, pairs - i);
+            for (int j = 0; j < count; j++) {
+                lines[j] = i + j;
+            }
+            inputLength = rowSize;
+            outputLength = rowSize;
+        } else {
+            int start = planStarts[batch];
+            count = planStarts[batch + 1] - start;
+            inputLength = 1;
+            outputLength = 1;
+            for (int j = 0; j < count; j++) {
+                int line = planLines[start + j];
+                lines[j] = line;
+                inputLength = Math.max(inputLength, corpus.length(line));
+                outputLength = Math.max(outputLength, BatchBuilder.outputLength(corpus, line));
+            }
+        }
+        long batchTokens = 0;
+        for (int j = 0; j < count; ++j) {
+            batchTokens += corpus.length(lines[j]) + BatchBuilder.outputLength(corpus, lines[j]);
+        }
+        MultiDataSet data = planLines == null ? batchBuilder.build(corpus, lines, count)
+                : batchBuilder.build(corpus, lines, count, inputLength, outputLength);
+        return new Batch(data, count, batchTokens, (long) count * (inputLength + outputLength));
+    }
+
+    private static class Batch {
+        private final MultiDataSet data;
+        private final int rows;
+        private final long tokens;
+        private final long steps;
+
+        public Batch(MultiDataSet data, int rows, long tokens, long steps) {
+            this.data = data;
+            this.rows = rows;
+            this.tokens = tokens;
+            this.steps = steps;
+        }
     }
 
     @Override
@@ -118,7 +311,8 @@ public class CorpusIterator implements MultiDataSetIterator {
 
     @Override
     public boolean asyncSupported() {
-        return true;
+        // the pipeline prefetches already, DL4J's own prefetch thread would only add another queue on top of it
+        return pipeline == null;
     }
 
     @Override
@@ -128,6 +322,7 @@ public class CorpusIterator implements MultiDataSetIterator {
         currentMacroBatch = 0;
     }
 
+    @Override
     public int batch() {
         return currentBatch;
     }
@@ -136,15 +331,65 @@ public class CorpusIterator implements MultiDataSetIterator {
         return totalBatches;
     }
 
+    // the pipeline stats, zeroes if there's no pipeline
+    public int queueDepth() {
+        return pipeline != null ? pipeline.queueDepth() : 0;
+    }
+
+    public long consumerWaits() {
+        return pipeline != null ? pipeline.waits() : 0;
+    }
+
+    @Override
+    public long consumerWaitNanos() {
+        return pipeline != null ? pipeline.waitNanos() : 0;
+    }
+
+    // the number of real tokens (input + output with <eos>) in all batches returned so far
+    @Override
+    public long tokens() {
+        return tokens.get();
+    }
+
+    // the number of time steps (input + output) in all batches returned so far, the tokens plus the padding
+    @Override
+    public long steps() {
+        return steps.get();
+    }
+
+    // the number of line pairs in all batches returned so far
+    @Override
+    public long examples() {
+        return examples.get();
+    }
+
+    @Override
+    public void setPosition(String position) {
+        setCurrentBatch(Integer.parseInt(position));
+    }
+
+    // the position is the batch number
+    @Override
+    public String position() {
+        return String.valueOf(currentBatch);
+    }
+
+    @Override
+    public double progress() {
+        return totalBatches == 0 ? 1 : (double) currentBatch / totalBatches;
+    }
+
     public void setCurrentBatch(int currentBatch) {
         this.currentBatch = currentBatch;
         currentMacroBatch = getMacroBatchByCurrentBatch();
     }
 
+    @Override
     public boolean hasNextMacrobatch() {
         return getMacroBatchByCurrentBatch() < totalMacroBatches && currentMacroBatch < totalMacroBatches;
     }
 
+    @Override
     public void nextMacroBatch() {
         ++currentMacroBatch;
     }
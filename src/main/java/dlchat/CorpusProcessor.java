@@ -1,30 +1,59 @@
 package dlchat;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class CorpusProcessor {
+
+    /*
+     * The processor works in two modes: without a corpus set it counts the word frequencies (if countFreq is true), with a corpus set it
+     * converts the lines to word indexes and appends them to it. Subclasses may override processLine() to do something else with the lines.
+     *
+     * Parallel mode (see setParallelism()) is used for files only. The file is split into byte ranges so that every range starts at a line
+     * where the speaker changes, then every range is processed by its own CorpusProcessor on a fork/join pool. Since consecutive lines are
+     * only joined within the same speaker turn and the ranges never split a turn, the ranges give exactly the same lines as the sequential
+     * pass. The frequencies are summed and the corpus chunks are appended in the file order so the result doesn't depend on the number of
+     * threads. The subclasses always work sequentially because their processLine() is not expected to be thread safe.
+     *
+     * The lines of one movie are a dialog, dialogEnd() is called between the last line of a movie and the first line of the next one. The
+     * corpus itself doesn't keep the dialogs, the sharded corpus does (see ShardWriter).
+     */
+
     public static final String SPECIALS = "!\"#$;%^:?*()[]{}<>«»,.–—=+…";
-    private Set<String> dictSet = new HashSet<>();
-    private Map<String, Double> freq = new HashMap<>();
-    private Map<String, Double> dict = new HashMap<>();
+    private Vocabulary freq = new Vocabulary(); // all words seen in the counting mode with their frequencies
+    private Vocabulary dict = new Vocabulary();
+    private Tokenizer tokenizer = new Tokenizer(SPECIALS);
+    private SubwordTokenizer subwords; // if the dictionary is made of subwords
+    private int[] ids; // of the last tokenized line
     private boolean countFreq;
+    private static final String FIELD_SEPARATOR = " \\+\\+\\+\\$\\+\\+\\+ ";
+    private static final int CHUNKS_PER_THREAD = 4; // more chunks than threads even out the chunk processing time
     private InputStream is;
+    private String filename;
     private int rowSize;
+    private int parallelism = 1;
+    private TokenCorpus corpus;
 
     public CorpusProcessor(String filename, int rowSize, boolean countFreq) throws FileNotFoundException {
         this(new FileInputStream(filename), rowSize, countFreq);
+        this.filename = filename;
     }
 
     public CorpusProcessor(InputStream is, int rowSize, boolean countFreq) {
@@ -34,12 +63,18 @@ public class CorpusProcessor {
     }
 
     public void start() throws IOException {
+        if (parallelism > 1 && filename != null && getClass() == CorpusProcessor.class) {
+            is.close();
+            startParallel();
+            return;
+        }
         try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
             String line;
             String lastName = "";
             String lastLine = "";
+            String lastDialog = "";
             while ((line = br.readLine()) != null) {
-                String[] lineSplit = line.toLowerCase().split(" \\+\\+\\+\\$\\+\\+\\+ ", 5);
+                String[] lineSplit = splitLine(line);
                 if (lineSplit.length > 4) {
                     // join consecuitive lines from the same speaker 
                     if (lineSplit[1].equals(lastName)) {
@@ -59,6 +94,12 @@ public class CorpusProcessor {
                             processLine(lastLine);
                             lastLine = lineSplit[4];
                         }
+                        if (!lineSplit[2].equals(lastDialog)) {
+                            if (!lastDialog.isEmpty()) {
+                                dialogEnd();
+                            }
+                            lastDialog = lineSplit[2];
+                        }
                         lastName = lineSplit[1];
                     }
                 }
@@ -67,84 +108,194 @@ public class CorpusProcessor {
         }
     }
 
-    protected void processLine(String lastLine) {
-        tokenizeLine(lastLine, dictSet, false);
-    }
-
-    // here we not only split the words but also store punctuation marks
-    protected void tokenizeLine(String lastLine, Collection<String> resultCollection, boolean addSpecials) {
-        String[] words = lastLine.split("[ \t]");
-        for (String word : words) {
-            if (!word.isEmpty()) {
-                boolean specialFound = true;
-                while (specialFound && !word.isEmpty()) {
-                    for (int i = 0; i < word.length(); ++i) {
-                        int idx = SPECIALS.indexOf(word.charAt(i));
-                        specialFound = false;
-                        if (idx >= 0) {
-                            String word1 = word.substring(0, i);
-                            if (!word1.isEmpty()) {
-                                addWord(resultCollection, word1);
-                            }
-                            if (addSpecials) {
-                                addWord(resultCollection, String.valueOf(word.charAt(i)));
-                            }
-                            word = word.substring(i + 1);
-                            specialFound = true;
-                            break;
-                        }
-                    }
+    private static String[] splitLine(String line) {
+        return line.toLowerCase().split(FIELD_SEPARATOR, 5);
+    }
+
+    private void startParallel() throws IOException {
+        List<long[]> ranges = splitFile(parallelism * CHUNKS_PER_THREAD);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<CorpusProcessor>> tasks = new ArrayList<>();
+            for (final long[] range : ranges) {
+                tasks.add(pool.submit(() -> processRange(range[0], range[1])));
+            }
+            // merge in the file order
+            for (ForkJoinTask<CorpusProcessor> task : tasks) {
+                CorpusProcessor chunk = task.get();
+                for (int i = 0; i < chunk.freq.size(); ++i) {
+                    freq.count(freq.add(chunk.freq.word(i)), chunk.freq.freq(i));
                 }
-                if (!word.isEmpty()) {
-                    addWord(resultCollection, word);
+                if (corpus != null) {
+                    corpus.append(chunk.corpus);
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private void addWord(Collection<String> coll, String word) {
-        if (coll != null) {
-            coll.add(word);
+    private CorpusProcessor processRange(long start, long end) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            CorpusProcessor chunk = new CorpusProcessor(new ByteBufferInputStream(buf), rowSize, countFreq);
+            chunk.setDict(dict); // read only from here on so it can be shared
+            if (corpus != null) {
+                chunk.setCorpus(new TokenCorpus(dict.size()));
+            }
+            chunk.start();
+            return chunk;
+        }
+    }
+
+    // byte ranges [start, end) that cover the entire file, every range except the first one starts with a new speaker turn
+    private List<long[]> splitFile(int chunks) throws IOException {
+        List<long[]> result = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            for (int i = 1; i < chunks && start < size; ++i) {
+                long end = findTurnStart(channel, Math.max(start, size * i / chunks));
+                if (end > start && end < size) {
+                    result.add(new long[] { start, end });
+                    start = end;
+                }
+            }
+            result.add(new long[] { start, size });
+        }
+        return result;
+    }
+
+    // finds the first line after pos where the speaker differs from the previous (valid) line
+    private static long findTurnStart(FileChannel channel, long pos) throws IOException {
+        channel.position(pos);
+        InputStream is = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        // skip the rest of the line pos points to, we can't know if it's the beginning of the line or not
+        int b;
+        while ((b = is.read()) >= 0 && b != '\n') {
+            ++pos;
+        }
+        ++pos;
+        String lastName = null;
+        while (b >= 0) {
+            long lineStart = pos;
+            line.reset();
+            while ((b = is.read()) >= 0 && b != '\n') {
+                line.write(b);
+            }
+            pos += line.size() + 1;
+            String[] lineSplit = splitLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+            if (lineSplit.length > 4) {
+                if (lastName != null && !lineSplit[1].equals(lastName)) {
+                    return lineStart;
+                }
+                lastName = lineSplit[1];
+            }
         }
-        if (countFreq) {
-            Double count = freq.get(word);
-            if (count == null) {
-                freq.put(word, 1.0);
-            } else {
-                freq.put(word, count + 1);
+        return channel.size();
+    }
+
+    protected void processLine(String lastLine) {
+        if (corpus != null) {
+            lineToIndexes(lastLine, corpus);
+        } else {
+            int cnt = tokenizeLine(lastLine, freq.index(), false, true, Integer.MAX_VALUE);
+            if (countFreq) {
+                int[] ids = tokenIds();
+                for (int i = 0; i < cnt; ++i) {
+                    freq.count(ids[i], 1);
+                }
             }
         }
     }
 
-    public Set<String> getDictSet() {
-        return dictSet;
+    // called after the last line of a dialog was processed, the next processLine() starts a new one
+    protected void dialogEnd() {
+    }
+
+    /*
+     * Here we not only split the words but also store punctuation marks. The token ids are written to tokenIds() and their number is
+     * returned. With addWords the unknown words are added to the map (and get new ids), otherwise they become <unk> (0).
+     */
+    protected int tokenizeLine(String lastLine, TokenMap words, boolean addSpecials, boolean addWords, int maxTokens) {
+        int count = tokenizer.tokenize(lastLine, words, addSpecials, addWords, Vocabulary.UNK, maxTokens);
+        ids = tokenizer.ids();
+        return count;
+    }
+
+    // the dictionary (see setDict()) token ids of the line are written to tokenIds(), the subwords if it's a subword dictionary
+    protected int indexLine(String line, int maxTokens) {
+        if (subwords == null) {
+            return tokenizeLine(line, dict.index(), true, false, maxTokens);
+        }
+        int count = subwords.tokenize(line, maxTokens);
+        ids = subwords.ids();
+        return count;
+    }
+
+    protected int[] tokenIds() {
+        return ids;
     }
 
-    public Map<String, Double> getFreq() {
+    public Vocabulary getFreq() {
         return freq;
     }
 
-    public void setDict(Map<String, Double> dict) {
+    public void setDict(Vocabulary dict) {
         this.dict = dict;
+        subwords = dict.isSubword() ? new SubwordTokenizer(dict) : null;
     }
 
-    protected boolean wordsToIndexes(Collection<String> words, List<Double> wordIdxs) {
-        int i = rowSize;
-        for (String word : words) {
-            if (--i == 0) {
-                break;
-            }
-            Double wordIdx = dict.get(word);
-            if (wordIdx != null) {
-                wordIdxs.add(wordIdx);
-            } else {
-                wordIdxs.add(0.0);
-            }
-        }
-        if (!wordIdxs.isEmpty()) {
+    // the lines will be converted to word indexes (see setDict()) and appended to this corpus
+    public void setCorpus(TokenCorpus corpus) {
+        this.corpus = corpus;
+    }
+
+    // number of threads to process a file with, 1 means sequential processing
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    // appends the word indexes to the corpus as a new line, the line is limited to rowSize - 1 tokens so there's room for <eos>
+    protected boolean lineToIndexes(String line, TokenCorpus corpus) {
+        int cnt = indexLine(line, rowSize - 1);
+        if (cnt > 0) {
+            corpus.add(tokenIds(), 0, cnt);
             return true;
         }
         return false;
     }
 
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+
 }
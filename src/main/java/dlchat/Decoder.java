@@ -0,0 +1,544 @@
+package dlchat;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.graph.vertex.GraphVertex;
+import org.deeplearning4j.nn.layers.recurrent.GravesLSTM;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.concurrency.AffinityManager;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class Decoder {
+
+    /*
+     * The response generation loop described in Main, moved here so the per-token work doesn't allocate anything of dictSize. The decoder
+     * input is one preallocated array, for the legacy one-hot networks only the previous and the next hot cells are flipped. The softmax
+     * output is copied to a primitive array at once through the NIO view of its buffer instead of calling getDouble() (a native call)
+     * for every one of the dictSize elements, then a Sampler picks the token from it.
+     *
+     * beamSearch() computes the thought vector once and then advances all the beams together, as rows of one minibatch, through the
+     * decoder and the output layer. After every step the best width continuations of all beams are selected, the LSTM state rows are
+     * reordered to follow their parent beams and the beams that produced <eos> become the candidates. Getting N best responses costs about
+     * as much as sampling one (a wider matrix multiplication per step) instead of N sequential passes.
+     *
+     * encodeBatch(), stepBatch() and keepStateRows() are the building blocks for InferenceScheduler that decodes many independent
+     * requests as one batch, the rows come and go between the steps.
+     *
+     * The thought vectors are cached by the input token sequence (the tokenizer has already lowercased and split it, that's the
+     * normalization) so a repeated input skips the encoder entirely. The deterministic responses (beam search or a top-1 sampler) are
+     * cached too. Both caches must be invalidated with modelChanged() when the parameters change (training, reloading).
+     *
+     * Not thread safe, the network layers keep the RNN state. The cache methods are thread safe.
+     */
+
+    private final ComputationGraph net;
+    private final int dictSize;
+    private final boolean indexed;
+    private final GravesLSTM decoder;
+    private final Layer output;
+    private final GraphVertex mergeVertex;
+    private final Layer embeddingDecoder;
+    private final INDArray decodeInput;
+    private int hot = -1;
+    private final double[] probs;
+    private final LatencyStats tokenLatency = new LatencyStats(10000);
+    private final LruCache<float[]> thoughtCache;
+    private final LruCache<List<Candidate>> responseCache;
+
+    public Decoder(ComputationGraph net, int dictSize) {
+        this(net, dictSize, 0, 0);
+    }
+
+    public Decoder(ComputationGraph net, int dictSize, long thoughtCacheBytes, long responseCacheBytes) {
+        this.net = net;
+        thoughtCache = new LruCache<>(thoughtCacheBytes);
+        responseCache = new LruCache<>(responseCacheBytes);
+        this.dictSize = dictSize;
+        indexed = net.getVertex("embeddingDecoder") != null;
+        decoder = (GravesLSTM) net.getLayer("decoder");
+        output = net.getLayer("output");
+        mergeVertex = net.getVertex("merge");
+        embeddingDecoder = indexed ? net.getLayer("embeddingDecoder") : null;
+        decodeInput = Nd4j.create(new int[] { 1, indexed ? 1 : dictSize, 1 }, 'c').assign(0);
+        probs = new double[dictSize];
+    }
+
+    /*
+     * Generates the response to the corpus line, up to maxTokens tokens are written to result and their number is returned. The last one
+     * is <eos> unless the limit was reached.
+     */
+    public int generate(TokenCorpus rows, int line, Sampler sampler, int maxTokens, int[] result) {
+        return generate(tokens(rows, line), sampler, maxTokens, result, null);
+    }
+
+    public interface TokenListener {
+        // called for every generated token as soon as it's sampled, return false to stop the generation
+        boolean onToken(int token);
+    }
+
+    /*
+     * Same for the input tokens (not reversed), the listener (may be null) gets the tokens as they are generated. If it stops the
+     * generation the tokens so far are returned.
+     */
+    public int generate(int[] input, Sampler sampler, int maxTokens, int[] result, TokenListener listener) {
+        if (sampler.isDeterministic()) {
+            int[] cached = cachedResponse(input, maxTokens);
+            if (cached != null) {
+                if (listener == null) {
+                    System.arraycopy(cached, 0, result, 0, cached.length);
+                    return cached.length;
+                }
+                int count = 0;
+                while (count < cached.length) {
+                    int token = cached[count];
+                    result[count++] = token;
+                    if (!listener.onToken(token)) {
+                        break;
+                    }
+                }
+                return count;
+            }
+        }
+        setToken(Vocabulary.GO);
+        INDArray thoughtVector = encode(input);
+        int count = 0;
+        while (count < maxTokens) {
+            long start = System.nanoTime();
+            step(decodeInput, thoughtVector, probs, 1);
+            int idx = sampler.sample(probs, dictSize);
+            tokenLatency.record(System.nanoTime() - start);
+            result[count++] = idx;
+            if (listener != null && !listener.onToken(idx)) {
+                return count; // incomplete, not cached
+            }
+            if (idx == Vocabulary.EOS) {
+                break;
+            }
+            setToken(idx);
+        }
+        if (sampler.isDeterministic()) {
+            cacheResponse(input, maxTokens, Arrays.copyOf(result, count));
+        }
+        return count;
+    }
+
+    /*
+     * Returns up to nBest responses ordered by the score, the best first. width is the number of beams, minLength suppresses <eos> for
+     * that many first tokens, lengthPenalty is alpha in the GNMT length normalization (score = log probability / ((5 + length) / 6) ^
+     * alpha), 0 means the plain log probability which prefers short responses. If less than nBest beams end with <eos> within maxLength
+     * tokens the unfinished ones are returned too.
+     */
+    public List<Candidate> beamSearch(TokenCorpus rows, int line, int width, int nBest, int maxLength, int minLength,
+            double lengthPenalty) {
+        return beamSearch(tokens(rows, line), width, nBest, maxLength, minLength, lengthPenalty);
+    }
+
+    // same for the input tokens (not reversed)
+    public List<Candidate> beamSearch(int[] input, int width, int nBest, int maxLength, int minLength, double lengthPenalty) {
+        // the search parameters are a part of the key, after a negative separator that can't be a token
+        int[] key = Arrays.copyOf(input, input.length + 6);
+        key[input.length] = -1;
+        key[input.length + 1] = width;
+        key[input.length + 2] = nBest;
+        key[input.length + 3] = maxLength;
+        key[input.length + 4] = minLength;
+        key[input.length + 5] = Float.floatToIntBits((float) lengthPenalty);
+        List<Candidate> cached = responseCache.get(key, 0, key.length);
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+        List<Candidate> result = search(input, width, nBest, maxLength, minLength, lengthPenalty);
+        long bytes = 0;
+        for (Candidate candidate : result) {
+            bytes += 4L * candidate.tokens.length + 48;
+        }
+        responseCache.put(key, 0, key.length, new ArrayList<>(result), bytes);
+        return result;
+    }
+
+    private List<Candidate> search(int[] input, int width, int nBest, int maxLength, int minLength, double lengthPenalty) {
+        setToken(Vocabulary.GO);
+        INDArray thoughtVector = encode(input);
+        INDArray[] copies = new INDArray[width];
+        Arrays.fill(copies, thoughtVector);
+        INDArray thoughtVectors = Nd4j.concat(0, copies);
+        INDArray beamInput = Nd4j.create(new int[] { width, indexed ? 1 : dictSize, 1 }, 'c').assign(0);
+        DataBuffer inputData = beamInput.data();
+        double[] beamProbs = new double[width * dictSize];
+        int[][] tokens = new int[width][maxLength];
+        int[][] nextTokens = new int[width][maxLength];
+        double[] scores = new double[width];
+        double[] nextScores = new double[width];
+        int[] lastToken = new int[width];
+        int[] parents = new int[width];
+        // the candidates of one step, 2 * width is enough to get width continuations even if all the best ones end with <eos>
+        int candidates = 2 * width;
+        double[] candScore = new double[candidates];
+        int[] candBeam = new int[candidates];
+        int[] candToken = new int[candidates];
+        List<Candidate> finished = new ArrayList<>();
+        Arrays.fill(lastToken, Vocabulary.GO);
+        int live = 1; // all the rows start the same, only the first one is expanded
+        for (int step = 0; step < maxLength && live > 0; ++step) {
+            long start = System.nanoTime();
+            for (int b = 0; b < width; ++b) {
+                if (indexed) {
+                    inputData.put(b, lastToken[b]);
+                } else {
+                    // one-hot, the hot cells are cleared right after the step
+                    inputData.put((long) b * dictSize + lastToken[b], 1);
+                }
+            }
+            step(beamInput, thoughtVectors, beamProbs, width);
+            if (!indexed) {
+                for (int b = 0; b < width; ++b) {
+                    inputData.put((long) b * dictSize + lastToken[b], 0);
+                }
+            }
+            int found = 0;
+            for (int b = 0; b < live; ++b) {
+                int offset = b * dictSize;
+                for (int v = 0; v < dictSize; ++v) {
+                    if (v == Vocabulary.EOS && step < minLength) {
+                        continue;
+                    }
+                    double p = beamProbs[offset + v];
+                    if (p <= 0) {
+                        continue;
+                    }
+                    double score = scores[b] + Math.log(p);
+                    if (found < candidates) {
+                        found = insert(candScore, candBeam, candToken, found, score, b, v);
+                    } else if (score > candScore[found - 1]) {
+                        insert(candScore, candBeam, candToken, found - 1, score, b, v);
+                    }
+                }
+            }
+            int nextLive = 0;
+            for (int c = 0; c < found && nextLive < width; ++c) {
+                int b = candBeam[c];
+                if (candToken[c] == Vocabulary.EOS) {
+                    int[] response = Arrays.copyOf(tokens[b], step + 1);
+                    response[step] = Vocabulary.EOS;
+                    finished.add(new Candidate(response, candScore[c], normalize(candScore[c], step + 1, lengthPenalty), true));
+                    continue;
+                }
+                System.arraycopy(tokens[b], 0, nextTokens[nextLive], 0, step);
+                nextTokens[nextLive][step] = candToken[c];
+                nextScores[nextLive] = candScore[c];
+                parents[nextLive] = b;
+                ++nextLive;
+            }
+            int[][] t = tokens;
+            tokens = nextTokens;
+            nextTokens = t;
+            double[] s = scores;
+            scores = nextScores;
+            nextScores = s;
+            for (int b = 0; b < width; ++b) {
+                if (b >= nextLive) {
+                    parents[b] = 0; // the unused rows just follow the first beam
+                }
+                lastToken[b] = tokens[b < nextLive ? b : 0][step];
+            }
+            live = nextLive;
+            tokenLatency.record(System.nanoTime() - start);
+            if (finished.size() >= nBest) {
+                break;
+            }
+            reorderState(parents);
+        }
+        if (finished.size() < nBest) {
+            for (int b = 0; b < live; ++b) {
+                finished.add(new Candidate(tokens[b].clone(), scores[b], normalize(scores[b], maxLength, lengthPenalty), false));
+            }
+        }
+        finished.sort((a, b) -> Double.compare(b.score, a.score));
+        return finished.size() > nBest ? new ArrayList<>(finished.subList(0, nBest)) : finished;
+    }
+
+    public static class Candidate {
+        public final int[] tokens; // the response tokens, the last one is <eos> if the response is finished
+        public final double logProb;
+        public final double score; // the length normalized log probability
+        public final boolean finished;
+
+        public Candidate(int[] tokens, double logProb, double score, boolean finished) {
+            this.tokens = tokens;
+            this.logProb = logProb;
+            this.score = score;
+            this.finished = finished;
+        }
+    }
+
+    private static double normalize(double logProb, int length, double lengthPenalty) {
+        return lengthPenalty == 0 ? logProb : logProb / Math.pow((5.0 + length) / 6.0, lengthPenalty);
+    }
+
+    // inserts to the arrays sorted by score descending, returns the new size
+    private static int insert(double[] scores, int[] beams, int[] tokens, int size, double score, int beam, int token) {
+        int pos = size;
+        while (pos > 0 && scores[pos - 1] < score) {
+            if (pos < scores.length) {
+                scores[pos] = scores[pos - 1];
+                beams[pos] = beams[pos - 1];
+                tokens[pos] = tokens[pos - 1];
+            }
+            --pos;
+        }
+        if (pos < scores.length) {
+            scores[pos] = score;
+            beams[pos] = beam;
+            tokens[pos] = token;
+        }
+        return Math.min(size + 1, scores.length);
+    }
+
+    // the LSTM state rows follow the beams they were continued from
+    private void reorderState(int[] parents) {
+        Map<String, INDArray> state = decoder.rnnGetPreviousState();
+        Map<String, INDArray> reordered = new HashMap<>();
+        for (Map.Entry<String, INDArray> entry : state.entrySet()) {
+            reordered.put(entry.getKey(), entry.getValue().getRows(parents));
+        }
+        decoder.rnnSetPreviousState(reordered);
+    }
+
+    // the cached response generated deterministically for the input with that token limit or null
+    public int[] cachedResponse(int[] input, int maxTokens) {
+        int[] key = responseKey(input, maxTokens);
+        List<Candidate> cached = responseCache.get(key, 0, key.length);
+        return cached != null ? cached.get(0).tokens : null;
+    }
+
+    public void cacheResponse(int[] input, int maxTokens, int[] response) {
+        int[] key = responseKey(input, maxTokens);
+        responseCache.put(key, 0, key.length, Collections.singletonList(new Candidate(response, 0, 0, true)), 4L * response.length + 48);
+    }
+
+    private static int[] responseKey(int[] input, int maxTokens) {
+        int[] key = Arrays.copyOf(input, input.length + 2);
+        key[input.length] = -2;
+        key[input.length + 1] = maxTokens;
+        return key;
+    }
+
+    // the parameters have changed, the cached thought vectors and responses are not valid anymore
+    public void modelChanged() {
+        thoughtCache.clear();
+        responseCache.clear();
+    }
+
+    public String cacheStats() {
+        return "thought vectors: " + thoughtCache.stats() + "; responses: " + responseCache.stats();
+    }
+
+    private static int[] tokens(TokenCorpus rows, int line) {
+        int[] tokens = new int[rows.length(line)];
+        for (int i = 0; i < tokens.length; ++i) {
+            tokens[i] = rows.get(line, i);
+        }
+        return tokens;
+    }
+
+    // runs the encoder (unless the thought vector is cached) and returns the thought vector, the decoder input must be set to <go>
+    private INDArray encode(int[] input) {
+        net.rnnClearPreviousState();
+        float[] cached = thoughtCache.get(input, 0, input.length);
+        if (cached != null) {
+            return Nd4j.create(cached, new int[] { 1, cached.length, 1 });
+        }
+        double[] rowIn = new double[input.length];
+        for (int i = 0; i < rowIn.length; ++i) {
+            rowIn[i] = input[input.length - 1 - i]; // reversed as in the training
+        }
+        INDArray in = Nd4j.create(rowIn, new int[] { 1, 1, rowIn.length });
+        net.feedForward(new INDArray[] { in, decodeInput }, false);
+        INDArray thoughtVector = mergeVertex.getInputs()[1];
+        float[] floats = thoughtVector.dup('c').data().asFloat();
+        thoughtCache.put(input, 0, input.length, floats, 4L * floats.length);
+        return thoughtVector;
+    }
+
+    /*
+     * Runs the encoder for count token sequences at once and returns their thought vectors as [count, width] rows. The inputs are
+     * padded to the longest one and masked, LastTimeStepVertex picks the last unmasked step of every row. The decoder RNN state is kept
+     * intact so the sequences being decoded are not affected.
+     */
+    public INDArray encodeBatch(int[][] inputs, int count) {
+        // the cached ones are taken as is, only the rest goes through the encoder
+        float[][] thoughts = new float[count][];
+        int[][] missed = new int[count][];
+        int[] missedIdx = new int[count];
+        int misses = 0;
+        for (int i = 0; i < count; ++i) {
+            thoughts[i] = thoughtCache.get(inputs[i], 0, inputs[i].length);
+            if (thoughts[i] == null) {
+                missed[misses] = inputs[i];
+                missedIdx[misses++] = i;
+            }
+        }
+        if (misses > 0) {
+            float[] encoded = encodeMasked(missed, misses);
+            int width = encoded.length / misses;
+            for (int m = 0; m < misses; ++m) {
+                float[] row = Arrays.copyOfRange(encoded, m * width, (m + 1) * width);
+                thoughts[missedIdx[m]] = row;
+                thoughtCache.put(missed[m], 0, missed[m].length, row, 4L * width);
+            }
+        }
+        int width = thoughts[0].length;
+        float[] result = new float[count * width];
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(thoughts[i], 0, result, i * width, width);
+        }
+        return Nd4j.create(result, new int[] { count, width });
+    }
+
+    // the thought vectors of the inputs as count rows one after another
+    private float[] encodeMasked(int[][] inputs, int count) {
+        int length = 1;
+        for (int i = 0; i < count; ++i) {
+            length = Math.max(length, inputs[i].length);
+        }
+        INDArray in = Nd4j.create(new int[] { count, 1, length }, 'c').assign(0);
+        INDArray mask = Nd4j.create(new int[] { count, length }, 'c').assign(0);
+        DataBuffer inData = in.data();
+        DataBuffer maskData = mask.data();
+        for (int i = 0; i < count; ++i) {
+            int[] tokens = inputs[i];
+            for (int t = 0; t < tokens.length; ++t) {
+                // reversed as in the training
+                inData.put((long) i * length + t, tokens[tokens.length - 1 - t]);
+                maskData.put((long) i * length + t, 1);
+            }
+        }
+        int[] go = new int[count];
+        Arrays.fill(go, Vocabulary.GO);
+        Map<String, INDArray> state = new HashMap<>(decoder.rnnGetPreviousState());
+        net.setLayerMaskArrays(new INDArray[] { mask, null }, null);
+        net.feedForward(new INDArray[] { in, tokenInput(go, count) }, false);
+        INDArray thoughtVectors = mergeVertex.getInputs()[1];
+        float[] result = thoughtVectors.reshape(count, thoughtVectors.size(1)).dup('c').data().asFloat();
+        net.clearLayerMaskArrays();
+        decoder.rnnSetPreviousState(state);
+        return result;
+    }
+
+    /*
+     * One decoder step for count independent sequences, lastTokens are their previous tokens and thoughtVectors their [count, width]
+     * thought vectors. The softmax outputs go to dst row by row. The rows of the decoder RNN state must match the rows here, see
+     * keepStateRows().
+     */
+    public void stepBatch(int[] lastTokens, int count, INDArray thoughtVectors, double[] dst) {
+        step(tokenInput(lastTokens, count), thoughtVectors.reshape(count, thoughtVectors.size(1), 1), dst, count);
+    }
+
+    // [count, 1, 1] token indexes or [count, dictSize, 1] one-hot vectors for the legacy networks
+    private INDArray tokenInput(int[] tokens, int count) {
+        INDArray input = Nd4j.create(new int[] { count, indexed ? 1 : dictSize, 1 }, 'c').assign(0);
+        DataBuffer inputData = input.data();
+        for (int i = 0; i < count; ++i) {
+            if (indexed) {
+                inputData.put(i, tokens[i]);
+            } else {
+                inputData.put((long) i * dictSize + tokens[i], 1);
+            }
+        }
+        return input;
+    }
+
+    // keeps the listed rows of the decoder RNN state (in that order) and appends added rows of zero state for the new sequences
+    public void keepStateRows(int[] rows, int count, int added) {
+        Map<String, INDArray> state = decoder.rnnGetPreviousState();
+        if (state == null || state.isEmpty()) {
+            return; // no step was made yet, every row starts from zeros anyway
+        }
+        if (count == 0) {
+            decoder.rnnClearPreviousState();
+            return;
+        }
+        int[] keep = Arrays.copyOf(rows, count);
+        Map<String, INDArray> result = new HashMap<>();
+        for (Map.Entry<String, INDArray> entry : state.entrySet()) {
+            INDArray kept = entry.getValue().getRows(keep);
+            if (added > 0) {
+                kept = Nd4j.concat(0, kept, Nd4j.zeros(added, kept.size(1)));
+            }
+            result.put(entry.getKey(), kept);
+        }
+        decoder.rnnSetPreviousState(result);
+    }
+
+    public void clearState() {
+        net.rnnClearPreviousState();
+    }
+
+    public int dictSize() {
+        return dictSize;
+    }
+
+    // one decoder step for the batch of decoder inputs, the softmax output goes to dst (row by row)
+    private void step(INDArray decodeInput, INDArray thoughtVectors, double[] dst, int batch) {
+        INDArray decoderInput = decodeInput;
+        if (indexed) {
+            // the embedding layer takes [batch, 1] indexes and returns [batch, width], the merge vertex wants a time series
+            INDArray embedded = embeddingDecoder.activate(decodeInput.reshape(batch, 1), false);
+            decoderInput = embedded.reshape(batch, embedded.size(1), 1);
+        }
+        mergeVertex.setInputs(decoderInput, thoughtVectors);
+        INDArray merged = mergeVertex.doForward(false);
+        INDArray activateDec = decoder.rnnTimeStep(merged);
+        copyProbs(output.activate(activateDec, false), dst, batch);
+    }
+
+    public LatencyStats tokenLatency() {
+        return tokenLatency;
+    }
+
+    private void setToken(int token) {
+        DataBuffer data = decodeInput.data();
+        if (indexed) {
+            data.put(0, token);
+            return;
+        }
+        if (hot >= 0) {
+            data.put(hot, 0);
+        }
+        data.put(token, 1);
+        hot = token;
+    }
+
+    // copies the [batch, dictSize, 1] softmax output to dst, row b goes to dst[b * dictSize]..
+    private void copyProbs(INDArray out, double[] dst, int batch) {
+        Nd4j.getAffinityManager().ensureLocation(out, AffinityManager.Location.HOST);
+        if (out.stride(1) != 1) {
+            out = out.dup('c');
+        }
+        DataBuffer data = out.data();
+        for (int b = 0; b < batch; ++b) {
+            int offset = out.offset() + b * out.stride(0);
+            if (data.dataType() == DataBuffer.Type.DOUBLE) {
+                DoubleBuffer buffer = data.asNioDouble();
+                buffer.position(offset);
+                buffer.get(dst, b * dictSize, dictSize);
+            } else {
+                FloatBuffer buffer = data.asNioFloat();
+                for (int i = 0; i < dictSize; ++i) {
+                    dst[b * dictSize + i] = buffer.get(offset + i);
+                }
+            }
+        }
+    }
+
+}
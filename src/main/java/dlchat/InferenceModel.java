@@ -0,0 +1,270 @@
+package dlchat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class InferenceModel {
+
+    /*
+     * The training checkpoint (rnn_train.zip) has the parameters, the RMSProp updater state (as large as the parameters) and needs the
+     * corpus to rebuild the dictionary, the dialog and the server need none of that but the parameters and the words. The inference
+     * model is a single file with the network configuration, the dictionary and the parameters in one of the formats:
+     *
+     * - FP32: the flattened parameter vector as is (little endian, 64 byte aligned), no compression. The file is memory mapped and the
+     * vector is copied to the network parameters in one go, the network isn't even initialized randomly first. The fastest to load.
+     *
+     * - FP16: every parameter as a half precision float, half the size of float32 with about 3 significant digits.
+     *
+     * - INT8: every row of a parameter matrix (a word of the embeddings, an input unit of the LSTM and the output weights) is scaled by
+     * its own max abs value to -127..127 and stored as bytes with the float scale, a quarter of float32. The single row parameters (the
+     * biases) are stored as FP16, they're small and sensitive to rounding.
+     *
+     * The loader rebuilds the network from the configuration and puts the parameters into it, there's no updater. Layout (big endian
+     * except the FP32 vector): magic, version, format, configuration JSON (length + UTF-8), dictionary (see Vocabulary.write()), then
+     * for FP32 the number of parameters, the padding and the vector, for the others the number of parameter arrays and every array:
+     * name, rank, shape, data (in 'c' order).
+     */
+
+    public enum Format {
+        FP32, FP16, INT8
+    }
+
+    private static final int MAGIC = 0x444c4349; // "DLCI"
+    private static final int VERSION = 2;
+    private static final int ALIGNMENT = 64;
+
+    public static void export(ComputationGraph net, Vocabulary dict, File file, Format format) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeByte(format.ordinal());
+            writeString(os, net.getConfiguration().toJson());
+            dict.write(os);
+            if (format == Format.FP32) {
+                writeVector(os, net.params());
+            } else {
+                writeArrays(os, net.paramTable(), format);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeVector(DataOutputStream os, INDArray params) throws IOException {
+        float[] data = params.dup('c').data().asFloat();
+        os.writeInt(data.length);
+        while (os.size() % ALIGNMENT != 0) {
+            os.writeByte(0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (float f : data) {
+            if (!buf.hasRemaining()) {
+                os.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            buf.putFloat(f);
+        }
+        os.write(buf.array(), 0, buf.position());
+    }
+
+    private static void writeArrays(DataOutputStream os, Map<String, INDArray> params, Format format) throws IOException {
+        os.writeInt(params.size());
+        for (Map.Entry<String, INDArray> param : params.entrySet()) {
+            INDArray value = param.getValue();
+            writeString(os, param.getKey());
+            int[] shape = value.shape();
+            os.writeInt(shape.length);
+            for (int dim : shape) {
+                os.writeInt(dim);
+            }
+            float[] data = value.dup('c').data().asFloat();
+            int rows = shape.length > 1 ? shape[0] : 1;
+            if (format == Format.INT8 && rows > 1) {
+                writeInt8(os, data, rows);
+            } else {
+                for (float f : data) {
+                    os.writeShort(toHalf(f));
+                }
+            }
+        }
+    }
+
+    // fills the empty dictionary and returns the network ready for the inference
+    public static ComputationGraph load(File file, Vocabulary dict) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 9 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                throw new IOException(file + " is not an inference model");
+            }
+            Format format = Format.values()[buf.get()];
+            ComputationGraph net = new ComputationGraph(ComputationGraphConfiguration.fromJson(readString(buf)));
+            dict.read(buf);
+            if (format == Format.FP32) {
+                net.init(readVector(buf), false);
+            } else {
+                net.init();
+                readArrays(buf, net.paramTable(), format, file);
+            }
+            return net;
+        } catch (RuntimeException e) {
+            throw new IOException(file + " is broken", e);
+        }
+    }
+
+    private static INDArray readVector(MappedByteBuffer buf) {
+        int length = buf.getInt();
+        while (buf.position() % ALIGNMENT != 0) {
+            buf.get();
+        }
+        FloatBuffer data = buf.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        data.limit(length);
+        INDArray params = Nd4j.create(1, length);
+        if (Nd4j.dataType() == DataBuffer.Type.FLOAT) {
+            params.data().asNioFloat().put(data); // a plain copy from the page cache if the platform is little endian
+        } else {
+            for (int i = 0; i < length; ++i) {
+                params.putScalar(i, data.get(i));
+            }
+        }
+        return params;
+    }
+
+    private static void readArrays(MappedByteBuffer buf, Map<String, INDArray> params, Format format, File file) throws IOException {
+        int count = buf.getInt();
+        for (int p = 0; p < count; ++p) {
+            String name = readString(buf);
+            int[] shape = new int[buf.getInt()];
+            int length = 1;
+            for (int i = 0; i < shape.length; ++i) {
+                shape[i] = buf.getInt();
+                length *= shape[i];
+            }
+            float[] data = new float[length];
+            int rows = shape.length > 1 ? shape[0] : 1;
+            if (format == Format.INT8 && rows > 1) {
+                readInt8(buf, data, rows);
+            } else {
+                for (int i = 0; i < length; ++i) {
+                    data[i] = fromHalf(buf.getShort());
+                }
+            }
+            INDArray param = params.get(name);
+            if (param == null) {
+                throw new IOException("Unknown parameter " + name + " in " + file);
+            }
+            // the parameter views may be 'f' ordered, assign() takes care of that
+            param.assign(Nd4j.create(data, shape, 'c'));
+        }
+    }
+
+    private static void writeInt8(DataOutputStream os, float[] data, int rows) throws IOException {
+        int cols = data.length / rows;
+        byte[] row = new byte[cols];
+        for (int r = 0; r < rows; ++r) {
+            float max = 0;
+            for (int c = 0; c < cols; ++c) {
+                max = Math.max(max, Math.abs(data[r * cols + c]));
+            }
+            float scale = max / 127;
+            for (int c = 0; c < cols; ++c) {
+                row[c] = scale == 0 ? 0 : (byte) Math.round(data[r * cols + c] / scale);
+            }
+            os.writeFloat(scale);
+            os.write(row);
+        }
+    }
+
+    private static void readInt8(ByteBuffer buf, float[] data, int rows) {
+        int cols = data.length / rows;
+        byte[] row = new byte[cols];
+        for (int r = 0; r < rows; ++r) {
+            float scale = buf.getFloat();
+            buf.get(row);
+            for (int c = 0; c < cols; ++c) {
+                data[r * cols + c] = row[c] * scale;
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream os, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // IEEE 754 half precision with rounding to the nearest even, the overflow becomes infinity
+    static short toHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mant = bits & 0x7fffff;
+        if (exp == 0xff) {
+            return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));
+        }
+        int e = exp - 127 + 15;
+        if (e >= 31) {
+            return (short) (sign | 0x7c00);
+        }
+        if (e <= 0) {
+            // subnormal half or zero
+            if (e < -10) {
+                return (short) sign;
+            }
+            mant |= 0x800000;
+            int shift = 14 - e;
+            int half = mant >> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int mid = 1 << (shift - 1);
+            if (rem > mid || (rem == mid && (half & 1) != 0)) {
+                ++half;
+            }
+            return (short) (sign | half);
+        }
+        int half = (e << 10) | (mant >> 13);
+        int rem = mant & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (half & 1) != 0)) {
+            ++half; // may carry into the exponent, that's still correct
+        }
+        return (short) (sign | half);
+    }
+
+    static float fromHalf(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mant = h & 0x3ff;
+        if (exp == 0) {
+            float value = mant * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        if (exp == 31) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mant << 13));
+    }
+
+}
@@ -0,0 +1,230 @@
+package dlchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class InferenceScheduler {
+
+    /*
+     * Decodes many requests at once on one network. The requests are queued and a single inference thread owns the network, so there's
+     * no locking around it. The thread keeps a batch of active sequences and advances all of them by one token per decoder step, as rows
+     * of one minibatch. A sequence retires as soon as it produces <eos> (or hits its token limit or is cancelled), the new requests are
+     * admitted between the steps: their encoder passes are batched together too and their rows are appended to the decoder state with
+     * zero state. So a new request doesn't wait for the whole batch to finish and the throughput grows with the load instead of running
+     * the requests one by one.
+     *
+     * When nothing is being decoded the thread waits for the first request and then up to maxWaitMs for more to come so they start
+     * together, when something is being decoded the queued requests are taken right away (up to maxBatch active sequences).
+     *
+     * The encoder passes use the decoder's thought vector cache, with a deterministic sampler the repeated requests are answered from the
+     * response cache right in submit().
+     */
+
+    private final Decoder decoder;
+    private final Sampler sampler;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final LatencyStats requestLatency = new LatencyStats(10000);
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong steps = new AtomicLong();
+    private final AtomicLong stepRows = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private volatile boolean running;
+    private Thread thread;
+
+    public InferenceScheduler(Decoder decoder, Sampler sampler, int maxBatch, long maxWaitMs) {
+        this.decoder = decoder;
+        this.sampler = sampler;
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+    }
+
+    // the future completes with the response tokens (the last one is <eos> unless maxTokens was reached), cancel it to stop decoding
+    public CompletableFuture<int[]> submit(int[] input, int maxTokens) {
+        if (input.length == 0) {
+            throw new IllegalArgumentException("Empty input");
+        }
+        if (sampler.isDeterministic()) {
+            int[] cached = decoder.cachedResponse(input, maxTokens);
+            if (cached != null) {
+                requestLatency.record(0);
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        Request request = new Request(input, maxTokens);
+        queue.add(request);
+        return request.future;
+    }
+
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(this::run, "inference-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        thread.join();
+    }
+
+    public LatencyStats requestLatency() {
+        return requestLatency;
+    }
+
+    public String stats() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long stepCount = steps.get();
+        return String.format("requests: %s; tokens/sec = %.1f; avg batch = %.1f; queued = %d; cache: %s", requestLatency.summary(),
+                tokens.get() / seconds, stepCount == 0 ? 0 : (double) stepRows.get() / stepCount, queue.size(), decoder.cacheStats());
+    }
+
+    private void run() {
+        List<Request> active = new ArrayList<>();
+        List<Request> admitted = new ArrayList<>();
+        int[] lastTokens = new int[maxBatch];
+        int[] keep = new int[maxBatch];
+        double[] probs = new double[maxBatch * decoder.dictSize()];
+        INDArray thoughtVectors = null;
+        while (running) {
+            try {
+                admit(active.isEmpty(), admitted, maxBatch - active.size());
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                thoughtVectors = step(active, admitted, lastTokens, keep, probs, thoughtVectors);
+            } catch (RuntimeException e) {
+                // fail what's being decoded and start over with a clean state
+                e.printStackTrace();
+                for (Request request : active) {
+                    request.future.completeExceptionally(e);
+                }
+                for (Request request : admitted) {
+                    request.future.completeExceptionally(e);
+                }
+                active.clear();
+                admitted.clear();
+                decoder.clearState();
+                thoughtVectors = null;
+            }
+        }
+        for (Request request : active) {
+            request.future.cancel(false);
+        }
+    }
+
+    // admits the new requests and makes one decoder step for all active ones, returns the thought vectors of the active requests
+    private INDArray step(List<Request> active, List<Request> admitted, int[] lastTokens, int[] keep, double[] probs,
+            INDArray thoughtVectors) {
+        if (!admitted.isEmpty()) {
+            int[][] inputs = new int[admitted.size()][];
+            for (int i = 0; i < inputs.length; ++i) {
+                inputs[i] = admitted.get(i).input;
+                lastTokens[active.size() + i] = Vocabulary.GO;
+            }
+            INDArray newThoughts = decoder.encodeBatch(inputs, inputs.length);
+            if (active.isEmpty()) {
+                decoder.clearState();
+                thoughtVectors = newThoughts;
+            } else {
+                for (int i = 0; i < active.size(); ++i) {
+                    keep[i] = i;
+                }
+                decoder.keepStateRows(keep, active.size(), admitted.size());
+                thoughtVectors = Nd4j.concat(0, thoughtVectors, newThoughts);
+            }
+            active.addAll(admitted);
+            admitted.clear();
+        }
+        if (active.isEmpty()) {
+            return thoughtVectors;
+        }
+        int count = active.size();
+        decoder.stepBatch(lastTokens, count, thoughtVectors, probs);
+        steps.incrementAndGet();
+        stepRows.addAndGet(count);
+        tokens.addAndGet(count);
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            Request request = active.get(i);
+            int token = sampler.sample(probs, i * decoder.dictSize(), decoder.dictSize());
+            request.add(token);
+            if (token == Vocabulary.EOS || request.length == request.maxTokens || request.future.isCancelled()) {
+                request.complete();
+                if (sampler.isDeterministic() && !request.future.isCancelled()) {
+                    decoder.cacheResponse(request.input, request.maxTokens, request.future.join());
+                }
+                requestLatency.record(System.nanoTime() - request.submitTime);
+            } else {
+                lastTokens[kept] = token;
+                keep[kept] = i;
+                active.set(kept++, request);
+            }
+        }
+        if (kept < count) {
+            active.subList(kept, count).clear();
+            decoder.keepStateRows(keep, kept, 0);
+            thoughtVectors = kept > 0 ? thoughtVectors.getRows(Arrays.copyOf(keep, kept)) : null;
+        }
+        return thoughtVectors;
+    }
+
+    private void admit(boolean idle, List<Request> admitted, int slots) throws InterruptedException {
+        if (slots <= 0) {
+            return;
+        }
+        if (!idle) {
+            queue.drainTo(admitted, slots);
+            return;
+        }
+        Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        admitted.add(first);
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (admitted.size() < slots) {
+            long remaining = deadline - System.nanoTime();
+            Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                break;
+            }
+            admitted.add(next);
+        }
+    }
+
+    private static class Request {
+        private final int[] input;
+        private final int maxTokens;
+        private final CompletableFuture<int[]> future = new CompletableFuture<>();
+        private final long submitTime = System.nanoTime();
+        private int[] output;
+        private int length;
+
+        public Request(int[] input, int maxTokens) {
+            this.input = input;
+            this.maxTokens = maxTokens;
+            output = new int[maxTokens];
+        }
+
+        public void add(int token) {
+            output[length++] = token;
+        }
+
+        public void complete() {
+            future.complete(Arrays.copyOf(output, length));
+        }
+    }
+
+}
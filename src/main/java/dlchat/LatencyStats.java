@@ -0,0 +1,52 @@
+package dlchat;
+
+import java.util.Arrays;
+
+public class LatencyStats {
+
+    /*
+     * Keeps the last capacity latency samples (nanoseconds) and the total count, the percentiles are computed over the kept samples
+     * when the summary is requested. Recording is a couple of array writes.
+     */
+
+    private final long[] samples;
+    private long count;
+    private long total;
+    private long max;
+
+    public LatencyStats(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[(int) (count % samples.length)] = nanos;
+        ++count;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    // the percentile (0..100) of the kept samples in nanoseconds
+    public synchronized long percentile(double p) {
+        int n = (int) Math.min(count, samples.length);
+        if (n == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        int idx = (int) Math.ceil(p / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, idx))];
+    }
+
+    public synchronized String summary() {
+        if (count == 0) {
+            return "no samples";
+        }
+        return String.format("n=%d avg=%.2f ms p50=%.2f ms p90=%.2f ms p99=%.2f ms max=%.2f ms", count, total / 1e6 / count,
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, max / 1e6);
+    }
+
+}
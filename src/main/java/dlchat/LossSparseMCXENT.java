@@ -0,0 +1,93 @@
+package dlchat;
+
+import org.apache.commons.math3.util.Pair;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationSoftmax;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+
+@SuppressWarnings("serial")
+public class LossSparseMCXENT implements ILossFunction {
+
+    /*
+     * Multi-class cross entropy for softmax outputs where the labels are token indexes instead of one-hot vectors. The output layer
+     * reshapes the [minibatch, 1, timesteps] labels to a [minibatch * timesteps, 1] column so every row has one label index. That saves a
+     * dictSize wide one-hot vector per timestep in every minibatch, the gradient is the same as for the one-hot case (softmax - one-hot)
+     * so only the label cells are touched.
+     */
+
+    private static final double EPS = 1e-10;
+
+    private INDArray softmax(INDArray preOutput, IActivation activationFn) {
+        if (!(activationFn instanceof ActivationSoftmax)) {
+            throw new IllegalStateException("Sparse MCXENT loss requires softmax activation, got " + activationFn);
+        }
+        return activationFn.getActivation(preOutput.dup(), true);
+    }
+
+    @Override
+    public double computeScore(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask, boolean average) {
+        INDArray scoreArr = computeScoreArray(labels, preOutput, activationFn, mask);
+        double score = scoreArr.sumNumber().doubleValue();
+        if (average) {
+            score /= scoreArr.size(0);
+        }
+        return score;
+    }
+
+    @Override
+    public INDArray computeScoreArray(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+        INDArray output = softmax(preOutput, activationFn);
+        int rows = labels.size(0);
+        INDArray scoreArr = Nd4j.zeros(rows, 1);
+        for (int i = 0; i < rows; ++i) {
+            if (mask == null || mask.getDouble(i) != 0) {
+                double p = output.getDouble(i, (int) labels.getDouble(i));
+                scoreArr.putScalar(i, -Math.log(Math.max(p, EPS)));
+            }
+        }
+        return scoreArr;
+    }
+
+    @Override
+    public INDArray computeGradient(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+        INDArray grad = softmax(preOutput, activationFn);
+        int rows = labels.size(0);
+        for (int i = 0; i < rows; ++i) {
+            int label = (int) labels.getDouble(i);
+            grad.putScalar(i, label, grad.getDouble(i, label) - 1);
+        }
+        if (mask != null) {
+            grad.muliColumnVector(mask);
+        }
+        return grad;
+    }
+
+    @Override
+    public Pair<Double, INDArray> computeGradientAndScore(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask,
+            boolean average) {
+        return new Pair<>(computeScore(labels, preOutput, activationFn, mask, average),
+                computeGradient(labels, preOutput, activationFn, mask));
+    }
+
+    public String name() {
+        return toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LossSparseMCXENT;
+    }
+
+    @Override
+    public int hashCode() {
+        return LossSparseMCXENT.class.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "LossSparseMCXENT()";
+    }
+
+}
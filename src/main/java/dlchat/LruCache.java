@@ -0,0 +1,120 @@
+package dlchat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class LruCache<V> {
+
+    /*
+     * Least recently used cache keyed by token id sequences, limited by the (estimated) memory of the entries rather than their number
+     * because the values differ in size. The caller tells the size of every value. All methods are synchronized, the cache is shared by
+     * the dialog/test code and the server threads.
+     */
+
+    private static final int ENTRY_OVERHEAD = 96; // map entry, key object and array headers, roughly
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public LruCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized V get(int[] tokens, int from, int to) {
+        Entry<V> entry = map.get(new Key(tokens, from, to));
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return entry.value;
+    }
+
+    public synchronized void put(int[] tokens, int from, int to, V value, long valueBytes) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        Key key = new Key(Arrays.copyOfRange(tokens, from, to), 0, to - from);
+        long size = valueBytes + 4L * (to - from) + ENTRY_OVERHEAD;
+        Entry<V> old = map.put(key, new Entry<>(value, size));
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += size;
+        Iterator<Map.Entry<Key, Entry<V>>> it = map.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry<V> eldest = it.next().getValue();
+            bytes -= eldest.bytes;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    // drops everything, the stats are kept
+    public synchronized void clear() {
+        map.clear();
+        bytes = 0;
+    }
+
+    public synchronized String stats() {
+        return String.format("entries=%d, %.1f MB, hits=%d, misses=%d, evictions=%d", map.size(), bytes / 1048576.0, hits, misses,
+                evictions);
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long bytes;
+
+        public Entry(V value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    // a view of tokens[from..to) for lookups, the stored keys own their arrays
+    private static class Key {
+        private final int[] tokens;
+        private final int from;
+        private final int to;
+        private final int hash;
+
+        public Key(int[] tokens, int from, int to) {
+            this.tokens = tokens;
+            this.from = from;
+            this.to = to;
+            int h = 1;
+            for (int i = from; i < to; ++i) {
+                h = 31 * h + tokens[i];
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (other.hash != hash || other.to - other.from != to - from) {
+                return false;
+            }
+            for (int i = 0; i < to - from; ++i) {
+                if (tokens[from + i] != other.tokens[other.from + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
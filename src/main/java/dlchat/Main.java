@@ -1,27 +1,15 @@
 package dlchat;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.file.Files;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Scanner;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.deeplearning4j.nn.api.Layer;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
@@ -29,21 +17,22 @@ import org.deeplearning4j.nn.conf.GradientNormalization;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.Updater;
 import org.deeplearning4j.nn.conf.graph.MergeVertex;
+import org.deeplearning4j.nn.conf.graph.PreprocessorVertex;
 import org.deeplearning4j.nn.conf.graph.rnn.DuplicateToTimeSeriesVertex;
 import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
 import org.deeplearning4j.nn.conf.layers.GravesLSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToRnnPreProcessor;
 import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.graph.vertex.GraphVertex;
 import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.executioner.OpExecutioner;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.lossfunctions.impl.LossMCXENT;
 
 public class Main {
 
@@ -102,11 +91,91 @@ public class Main {
      *
      * JVM properties used:
      * 
-     * -Ddlchat.dialog to start the dialog (testing) mode
+     * -Ddlchat.dialog to start the dialog (testing) mode. If the model zip has the dictionary (the checkpoints include it) the corpus
+     * isn't processed and the updater state isn't loaded, the same for dlchat.server.
+     * 
+     * -Ddlchat.thoughtCacheMb=64 and -Ddlchat.responseCacheMb=16 (for instance) to limit the caches of the thought vectors and of the
+     * deterministic (beam search or -Ddlchat.topK=1) responses for the repeated inputs, 0 disables the cache. See Decoder.
+     * 
+     * -Ddlchat.server=8080 (for instance) to serve the existing model over HTTP on that port instead of the dialog or training, POST
+     * the phrase to /chat, the stats are at /stats. The concurrent requests are decoded together in batches of up to
+     * -Ddlchat.serverBatch=32 requests, an idle server waits up to -Ddlchat.serverWaitMs=5 for more requests to start them together.
+     * See InferenceScheduler.
      * 
      * -Ddlchat.shift=1800 (for instance) to continue the training process from that batch number; batch numbers are printed after each
      * processed macrobatch. If you changed the minibatch size after the last launch, recalculate the number accordingly, i.e. if you
-     * doubled the minibatch size, specify half of the value and so on.
+     * doubled the minibatch size, specify half of the value and so on. With dlchat.shards it's the shard:offset position instead.
+     * 
+     * -Ddlchat.bucketWidth=5 (for instance) to group the line pairs of similar length into the same minibatches and trim the padding, see
+     * CorpusIterator. The batch order and numbers differ from the sequential iteration so don't use the dlchat.shift value from a run
+     * with a different setting. Disabled by default.
+     * 
+     * -Ddlchat.temperature=0.8, -Ddlchat.topK=50, -Ddlchat.topP=0.9 (for instance) to tune the response sampling, see Sampler. By
+     * default the token is sampled from the entire softmax output as is.
+     * 
+     * -Ddlchat.beam=5 (for instance) to generate the responses with the beam search of that width instead of sampling, -Ddlchat.nBest=3
+     * is the number of the best responses to show and -Ddlchat.lengthPenalty=0.6 is the length normalization (0 for none, the short
+     * responses win then), see Decoder.
+     * 
+     * -Ddlchat.batchWorkers=2 (for instance) to build the minibatches with that many threads ahead of the training, they keep working
+     * while the model is saved or tested between the macrobatches. 0 uses DL4J's own prefetching. Defaults to 2.
+     * 
+     * -Ddlchat.batchQueue=8 (for instance) to limit how many minibatches the workers may build ahead, defaults to 8
+     * 
+     * -Ddlchat.keepBackups=3 (for instance) to keep that many previous versions of the model (rnn_train.bak.N.zip), see Checkpointer
+     * 
+     * -Ddlchat.legacyDecoder to create a new network with the one-hot decoder input and labels (the networks trained this way are detected
+     * and loaded automatically)
+     * 
+     * -Ddlchat.ingestThreads=4 (for instance) to process the corpus file with that many threads, defaults to the number of CPU cores
+     * 
+     * -Ddlchat.metrics=training_metrics.csv (for instance) is the file for the per-macrobatch training metrics (time split, throughput,
+     * memory, score), .jsonl for JSON lines, empty to only publish them over JMX. It's rolled over at -Ddlchat.metricsMaxMb=16. See
+     * TrainingMetrics.
+     * 
+     * -Ddlchat.gcHighWater=0.7 and -Ddlchat.gcCriticalWater=0.9 (for instance) are the fractions of the off-heap limit (JavaCPP's
+     * -Dorg.bytedeco.javacpp.maxbytes, defaults to -Xmx) where the garbage collection is requested to release the arrays, at most once
+     * per -Ddlchat.gcMinIntervalMs=1000 over the high mark and every time over the critical mark. There's no periodic GC then. That's
+     * the default for the CPU backend only, the device memory isn't tracked so with CUDA the GC runs every 2000 ms as before. Set
+     * -Ddlchat.gcWindow=2000 (for instance) to run the GC every that many milliseconds with any backend, 0 to collect by the off-heap
+     * use with any backend. See MemoryMonitor.
+     * 
+     * -Ddlchat.scoreEverySec=10 (for instance) to print the training score at most that often, see SampledScoreListener
+     * 
+     * -Ddlchat.corpus=movie_lines.txt (for instance) is the corpus file in the Cornell movie dialogs format, that's the default
+     * 
+     * -Ddlchat.makeShards=shards (for instance) to convert the corpus file to a directory of shard files and exit, the corpus is streamed
+     * and never loaded as a whole. A shard has up to -Ddlchat.shardMb=64 of tokens, -Ddlchat.shardGzip compresses them. The last
+     * dlchat.validationLines lines are held out (their pairs don't cross the dialogs). Then -Ddlchat.shards=shards trains from that
+     * directory instead of the corpus file, the shards are streamed and the line pairs are mixed in a shuffle buffer of
+     * -Ddlchat.shuffleBuffer=65536 pairs so the heap use doesn't depend on the corpus size. dlchat.shift is then the shard:offset position
+     * printed after each macrobatch. dlchat.trainWorkers and dlchat.bucketWidth aren't supported with the shards. See ShardWriter and
+     * ShardedCorpusIterator.
+     * 
+     * -Ddlchat.validationLines=2000 (for instance) is the number of line pairs at the end of the corpus held out from the training. Every
+     * minute the perplexity and the token accuracy on them are computed in the background on a copy of the parameters together with a
+     * sample response, see Validator. The results go to -Ddlchat.validationMetrics=validation_metrics.csv (.jsonl for JSON lines, empty
+     * to only print them), rolled over like the training metrics.
+     * 
+     * -Ddlchat.maxDict=50000 (for instance) to use that many most frequent words, defaults to 20000. With the large dictionaries use
+     * -Ddlchat.sampledSoftmax=2048 (for instance) to create the network with the output layer that's trained with the softmax over the
+     * minibatch labels and that many sampled words instead of the entire dictionary, see SampledSoftmaxLayer. The responses are generated
+     * from the full softmax as usual. Requires the indexed decoder (not dlchat.legacyDecoder).
+     * 
+     * -Ddlchat.bpe=8000 (for instance) to build the dictionary of that many subwords learned with the byte pair encoding instead of the
+     * words (dlchat.maxDict is ignored then), every word of the corpus is a few subwords so there's no <unk>. 4000-8000 is a good size,
+     * the lines get longer in tokens and are still cut at 40 tokens. The existing models and shards keep the dictionary they were made
+     * with, the subword one is detected by them. See BpeTrainer and SubwordTokenizer.
+     * 
+     * -Ddlchat.export=rnn_infer.bin (for instance) to write the existing model to that file for the inference and exit, the file has no
+     * updater state and the parameters are stored as -Ddlchat.exportFormat=int8 (per row scaled bytes), fp16 or fp32 (uncompressed
+     * and memory mapped on load, the fastest start), the dictionary is included. The export fails if the perplexity on the validation
+     * pairs grows by more than -Ddlchat.exportTolerance=0.02 (2%). Then -Ddlchat.model=rnn_infer.bin starts the dialog (or the server
+     * with dlchat.server) with that file, the corpus and the training model aren't loaded. See InferenceModel.
+     * 
+     * -Ddlchat.trainWorkers=4 (for instance) to train that many replicas of the network in parallel, each on its own share of the
+     * minibatches, their parameters are averaged every -Ddlchat.averagingFrequency=5 minibatches. The batch workers aren't used then.
+     * Meant for CPU, on a GPU all the replicas stay on the training thread's device, see ParallelTrainer. Defaults to 1 (no replicas).
      * 
      * [1] https://arxiv.org/abs/1506.05869 A Neural Conversational Model
      * 
@@ -114,31 +183,74 @@ public class Main {
      * Neural Networks
      */
 
-    public final Map<String, Double> dict = new HashMap<>();
-    public final Map<Double, String> revDict = new HashMap<>();
+    public final Vocabulary dict = new Vocabulary();
     private final String CHARS = "-\\/_&" + CorpusProcessor.SPECIALS;
-    private List<List<Double>> corpus = new ArrayList<>();
+    private TokenCorpus corpus;
+    private int[] shardValidationPairs; // the validation pairs of the sharded corpus, see validationPairs()
     private Random rng = new Random();
     public static final int HIDDEN_LAYER_WIDTH = 512; // this is purely empirical, affects performance and VRAM requirement
     private static final int EMBEDDING_WIDTH = 128; // one-hot vectors will be embedded to more dense vectors with this width
-    private static final String CORPUS_FILENAME = "movie_lines.txt"; // filename of data corpus to learn
+    private static final String CORPUS_FILENAME = System.getProperty("dlchat.corpus", "movie_lines.txt"); // data corpus to learn
+    private static final String CORPUS_CACHE_FILENAME = CORPUS_FILENAME + ".cache"; // preprocessed dictionary and corpus, see CorpusCache
     private static final String MODEL_FILENAME = "rnn_train.zip"; // filename of the model
-    private static final String BACKUP_MODEL_FILENAME = "rnn_train.bak.zip"; // filename of the previous version of the model (backup)
+    private static final int KEEP_BACKUPS = Integer.getInteger("dlchat.keepBackups", 3); // rnn_train.bak.1.zip is the most recent
     private static final int MINIBATCH_SIZE = 32;
     private static final Random rnd = new Random(new Date().getTime());
     private static final long SAVE_EACH_MS = TimeUnit.MINUTES.toMillis(5); // save the model with this period
     private static final long TEST_EACH_MS = TimeUnit.MINUTES.toMillis(1); // test the model with this period
-    private static final int MAX_DICT = 20000; // this number of most frequent words will be used, unknown words (that are not in the
-                                               // dictionary) are replaced with <unk> token
+    private static final int MAX_DICT = Integer.getInteger("dlchat.maxDict", 20000); // this number of most frequent words will be used,
+                                                                                     // unknown words are replaced with <unk> token
+    private static final int BPE_VOCAB = Integer.getInteger("dlchat.bpe", 0); // subwords in the dictionary, 0 for the words
+    private static final int SAMPLED_SOFTMAX = Integer.getInteger("dlchat.sampledSoftmax", 0); // sampled words, 0 for the full softmax
+    private static final double NOISE_POWER = 0.75; // the sampled classes are drawn by their frequency ^ this
     private static final int TBPTT_SIZE = 25;
     private static final double LEARNING_RATE = 1e-1;
     private static final double L2 = 1e-3;
     private static final double RMS_DECAY = 0.95;
     private static final int ROW_SIZE = 40; // maximum line length in tokens
-    private static final int GC_WINDOW = 2000; // delay between garbage collections, try to reduce if you run out of VRAM or increase for
-                                               // better performance
+    // periodic GC every that many ms, 0 to collect by the off-heap use (see MemoryMonitor), null for the backend's default
+    private static final Integer GC_WINDOW = Integer.getInteger("dlchat.gcWindow");
+    private static final int CUDA_GC_WINDOW = 2000; // the default with CUDA, MemoryMonitor doesn't see the device memory
+    private static final double GC_HIGH_WATER = Double.parseDouble(System.getProperty("dlchat.gcHighWater", "0.7")); // of the limit
+    private static final double GC_CRITICAL_WATER = Double.parseDouble(System.getProperty("dlchat.gcCriticalWater", "0.9"));
+    private static final long GC_MIN_INTERVAL_MS = Long.getLong("dlchat.gcMinIntervalMs", 1000); // between the high water collections
     private static final int MACROBATCH_SIZE = 20; // see CorpusIterator
-    private ComputationGraph net;
+    private static final double TEMPERATURE = Double.parseDouble(System.getProperty("dlchat.temperature", "1")); // see Sampler
+    private static final int TOP_K = Integer.getInteger("dlchat.topK", 0); // 0 to sample from the entire dictionary
+    private static final double TOP_P = Double.parseDouble(System.getProperty("dlchat.topP", "1")); // 1 to sample from the entire dictionary
+    private static final int BEAM_WIDTH = Integer.getInteger("dlchat.beam", 0); // 0 to sample the response, see Decoder.beamSearch()
+    private static final int N_BEST = Integer.getInteger("dlchat.nBest", 3); // number of responses to show with the beam search
+    private static final double LENGTH_PENALTY = Double.parseDouble(System.getProperty("dlchat.lengthPenalty", "0.6"));
+    private static final int SERVER_PORT = Integer.getInteger("dlchat.server", 0); // see ChatServer
+    private static final int SERVER_BATCH = Integer.getInteger("dlchat.serverBatch", 32); // max requests decoded at once
+    private static final long SERVER_WAIT_MS = Long.getLong("dlchat.serverWaitMs", 5); // how long an idle server waits to batch requests
+    private static final long THOUGHT_CACHE_MB = Long.getLong("dlchat.thoughtCacheMb", 64); // encoder outputs by input, see Decoder
+    private static final long RESPONSE_CACHE_MB = Long.getLong("dlchat.responseCacheMb", 16); // deterministic responses by input
+    private static final int BATCH_WORKERS = Integer.getInteger("dlchat.batchWorkers", 2); // see BatchPipeline
+    private static final int BATCH_QUEUE = Integer.getInteger("dlchat.batchQueue", 8); // batches built ahead by the workers
+    private static final int BUCKET_WIDTH = Integer.getInteger("dlchat.bucketWidth", 0); // length bucketing, 0 to iterate sequentially
+    private static final int INGEST_THREADS = Integer.getInteger("dlchat.ingestThreads", Runtime.getRuntime().availableProcessors());
+    private static final String METRICS_FILENAME = System.getProperty("dlchat.metrics", "training_metrics.csv"); // see TrainingMetrics
+    private static final long METRICS_MAX_MB = Long.getLong("dlchat.metricsMaxMb", 16); // the metrics file is rolled over at this size
+    private static final int METRICS_KEEP = 3; // rolled over metrics files to keep
+    private static final long SCORE_EVERY_SEC = Long.getLong("dlchat.scoreEverySec", 10); // see SampledScoreListener
+    private static final String EXPORT_FORMAT = System.getProperty("dlchat.exportFormat", "int8"); // see InferenceModel
+    private static final double EXPORT_TOLERANCE = Double.parseDouble(System.getProperty("dlchat.exportTolerance", "0.02"));
+    private static final int VALIDATION_LINES = Integer.getInteger("dlchat.validationLines", 2000); // held out pairs at the corpus end
+    private static final int VALIDATION_BATCH_SIZE = 64; // the validation output is this x dictionary size x steps floats
+    private static final String VALIDATION_FILENAME = System.getProperty("dlchat.validationMetrics", "validation_metrics.csv");
+    private static final String SHARDS_DIR = System.getProperty("dlchat.shards"); // the sharded corpus to stream, see ShardedCorpusIterator
+    private static final long SHARD_MB = Long.getLong("dlchat.shardMb", 64); // uncompressed data per shard, see ShardWriter
+    private static final int SHUFFLE_BUFFER = Integer.getInteger("dlchat.shuffleBuffer", 65536); // line pairs mixed when streaming
+    private static final int TRAIN_WORKERS = Integer.getInteger("dlchat.trainWorkers", 1); // see ParallelTrainer
+    private static final int AVERAGING_FREQUENCY = Integer.getInteger("dlchat.averagingFrequency", 5); // minibatches per worker
+    ComputationGraph net;
+    private Checkpointer checkpointer;
+    private Decoder decoder;
+    private Sampler sampler;
+    private MemoryMonitor memory;
+    private final int[] reply = new int[ROW_SIZE];
+    boolean indexedDecoder; // the decoder input goes through an embedding layer, the labels are token indexes
 
     public static void main(String[] args) throws IOException {
         new Main().run(args);
@@ -146,25 +258,91 @@ public class Main {
 
     private void run(String[] args) throws IOException {
         Nd4j.ENFORCE_NUMERICAL_STABILITY = true;
-        Nd4j.getMemoryManager().setAutoGcWindow(GC_WINDOW);
+        int gcWindow = GC_WINDOW != null ? GC_WINDOW
+                : Nd4j.getExecutioner().getExecutionerType() == OpExecutioner.ExecutionerType.CUDA ? CUDA_GC_WINDOW : 0;
+        if (gcWindow > 0) {
+            Nd4j.getMemoryManager().setAutoGcWindow(gcWindow);
+        }
+        memory = new MemoryMonitor(GC_HIGH_WATER, GC_CRITICAL_WATER, GC_MIN_INTERVAL_MS, gcWindow == 0);
+        memory.start();
 
-        createDictionary();
+        long startTime = System.nanoTime();
+        String inferenceModel = System.getProperty("dlchat.model");
+        if (inferenceModel != null) {
+            // the dictionary comes with the model, the corpus isn't needed
+            System.out.println("Loading the inference model...");
+            net = InferenceModel.load(new File(inferenceModel), dict);
+            serve(startTime);
+            return;
+        }
 
         File networkFile = new File(MODEL_FILENAME);
+        boolean serving = SERVER_PORT > 0 || System.getProperty("dlchat.dialog") != null;
+        if (serving && networkFile.exists() && Checkpointer.readVocabulary(networkFile, dict)) {
+            // the checkpoint has the dictionary, no need to process the corpus and to load the updater state just to chat
+            System.out.println("Loading the existing network with its dictionary...");
+            net = ModelSerializer.restoreComputationGraph(networkFile, false);
+            serve(startTime);
+            return;
+        }
+
+        String makeShards = System.getProperty("dlchat.makeShards");
+        if (makeShards != null) {
+            makeShards(new File(makeShards));
+            return;
+        }
+        if (SHARDS_DIR != null) {
+            // the training lines are streamed, only the dictionary and the validation lines are loaded
+            ShardedCorpusIterator.readVocabulary(new File(SHARDS_DIR), dict);
+            corpus = ShardedCorpusIterator.readValidation(new File(SHARDS_DIR));
+            shardValidationPairs = ShardedCorpusIterator.readValidationPairs(new File(SHARDS_DIR));
+            if (shardValidationPairs == null) {
+                System.out.println("The shards have no " + ShardWriter.VALIDATION_PAIRS + ", the validation pairs may cross the dialogs");
+            }
+            System.out.println("Loaded the dictionary and the validation lines from " + SHARDS_DIR + ", dictionary size is " + dict.size());
+        } else {
+            createDictionary(CORPUS_FILENAME, CORPUS_CACHE_FILENAME, INGEST_THREADS);
+        }
+
         if (networkFile.exists()) {
             System.out.println("Loading the existing network...");
             net = ModelSerializer.restoreComputationGraph(networkFile);
-            if (System.getProperty("dlchat.dialog") != null) {
+            indexedDecoder = net.getVertex("embeddingDecoder") != null;
+            if (!indexedDecoder) {
+                System.out.println("The network uses the legacy one-hot decoder input.");
+            }
+            String export = System.getProperty("dlchat.export");
+            if (export != null) {
+                exportModel(new File(export));
+                return;
+            }
+            if (SERVER_PORT > 0) {
+                startServer();
+            } else if (System.getProperty("dlchat.dialog") != null) {
                 startDialog();
             } else {
                 test();
             }
         } else {
             System.out.println("Creating a new network...");
+            indexedDecoder = System.getProperty("dlchat.legacyDecoder") == null;
             createComputationGraph();
         }
-        net.setListeners(new ScoreIterationListener(1));
-        train(networkFile);
+        setSampledSoftmaxNoise();
+        net.setListeners(new SampledScoreListener(TimeUnit.SECONDS.toMillis(SCORE_EVERY_SEC)));
+        checkpointer = new Checkpointer(networkFile, KEEP_BACKUPS, dict);
+        train();
+    }
+
+    private void serve(long startTime) throws IOException {
+        indexedDecoder = net.getVertex("embeddingDecoder") != null;
+        System.out.println("Model loaded in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms, dictionary size is "
+                + dict.size());
+        if (SERVER_PORT > 0) {
+            startServer();
+        } else {
+            startDialog();
+        }
     }
 
     public void createComputationGraph() {
@@ -182,229 +360,400 @@ public class Main {
                         new GravesLSTM.Builder().nIn(EMBEDDING_WIDTH).nOut(HIDDEN_LAYER_WIDTH).activation(Activation.TANH).build(),
                         "embeddingEncoder")
                 .addVertex("thoughtVector", new LastTimeStepVertex("inputLine"), "encoder")
-                .addVertex("dup", new DuplicateToTimeSeriesVertex("decoderInput"), "thoughtVector")
-                .addVertex("merge", new MergeVertex(), "decoderInput", "dup")
+                .addVertex("dup", new DuplicateToTimeSeriesVertex("decoderInput"), "thoughtVector");
+        int decoderInputWidth;
+        if (indexedDecoder) {
+            // the embedding layer works with 2D activations, they're converted back to time series explicitly because the merge vertex
+            // (unlike layers) doesn't get the preprocessors
+            graphBuilder
+                    .addLayer("embeddingDecoder", new EmbeddingLayer.Builder().nIn(dict.size()).nOut(EMBEDDING_WIDTH).build(), "decoderInput")
+                    .addVertex("embeddingDecoderRnn", new PreprocessorVertex(new FeedForwardToRnnPreProcessor()), "embeddingDecoder")
+                    .addVertex("merge", new MergeVertex(), "embeddingDecoderRnn", "dup");
+            decoderInputWidth = EMBEDDING_WIDTH;
+        } else {
+            graphBuilder.addVertex("merge", new MergeVertex(), "decoderInput", "dup");
+            decoderInputWidth = dict.size();
+        }
+        RnnOutputLayer.Builder outputBuilder = indexedDecoder && SAMPLED_SOFTMAX > 0
+                ? new SampledSoftmaxOutputLayer.Builder(SAMPLED_SOFTMAX) : new RnnOutputLayer.Builder();
+        RnnOutputLayer outputLayer = outputBuilder.nIn(HIDDEN_LAYER_WIDTH).nOut(dict.size()).activation(Activation.SOFTMAX)
+                .lossFunction(indexedDecoder ? new LossSparseMCXENT() : new LossMCXENT()).build();
+        graphBuilder
                 .addLayer("decoder",
-                        new GravesLSTM.Builder().nIn(dict.size() + HIDDEN_LAYER_WIDTH).nOut(HIDDEN_LAYER_WIDTH).activation(Activation.TANH)
-                                .build(),
+                        new GravesLSTM.Builder().nIn(decoderInputWidth + HIDDEN_LAYER_WIDTH).nOut(HIDDEN_LAYER_WIDTH)
+                                .activation(Activation.TANH).build(),
                         "merge")
-                .addLayer("output", new RnnOutputLayer.Builder().nIn(HIDDEN_LAYER_WIDTH).nOut(dict.size()).activation(Activation.SOFTMAX)
-                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "decoder")
+                .addLayer("output", outputLayer, "decoder")
                 .setOutputs("output");
 
         net = new ComputationGraph(graphBuilder.build());
         net.init();
     }
 
-    private void train(File networkFile) throws IOException {
+    // the sampled softmax draws the words by their corpus frequency, the distribution isn't saved with the network
+    private void setSampledSoftmaxNoise() {
+        if (!(net.getLayer("output").conf().getLayer() instanceof SampledSoftmaxOutputLayer)) {
+            return;
+        }
+        double[] noise = new double[dict.size()];
+        for (int i = 0; i < noise.length; ++i) {
+            noise[i] = Math.pow(Math.max(dict.freq(i), 1), NOISE_POWER);
+        }
+        ((SampledSoftmaxOutputLayer) net.getLayer("output").conf().getLayer()).noise(noise);
+        System.out.println("The output layer is trained with the sampled softmax");
+    }
+
+    private void train() throws IOException {
         long lastSaveTime = System.currentTimeMillis();
         long lastTestTime = System.currentTimeMillis();
-        CorpusIterator logsIterator = new CorpusIterator(corpus, MINIBATCH_SIZE, MACROBATCH_SIZE, dict.size(), ROW_SIZE);
+        TrainingIterator iterator;
+        CorpusIterator logsIterator = null;
+        ParallelTrainer trainer = null;
+        if (SHARDS_DIR != null) {
+            iterator = new ShardedCorpusIterator(new File(SHARDS_DIR), MINIBATCH_SIZE, MACROBATCH_SIZE, dict.size(), ROW_SIZE,
+                    indexedDecoder, SHUFFLE_BUFFER);
+            if (TRAIN_WORKERS > 1 || BUCKET_WIDTH > 0) {
+                System.out.println("dlchat.trainWorkers and dlchat.bucketWidth aren't supported with the sharded corpus, ignored");
+            }
+        } else {
+            logsIterator = new CorpusIterator(corpus, MINIBATCH_SIZE, MACROBATCH_SIZE, dict.size(), ROW_SIZE, indexedDecoder);
+            // one pair is skipped between the training and the validation pairs so no validation line is a training response
+            logsIterator.setPairs(firstValidationLine() - 1);
+            if (TRAIN_WORKERS > 1) {
+                trainer = new ParallelTrainer(net, TRAIN_WORKERS, AVERAGING_FREQUENCY);
+                System.out.println("Training " + TRAIN_WORKERS + " replicas in parallel");
+            } else if (BATCH_WORKERS > 0) {
+                logsIterator.setPipeline(BATCH_WORKERS, BATCH_QUEUE);
+            }
+            if (BUCKET_WIDTH > 0) {
+                logsIterator.setBucketing(BUCKET_WIDTH);
+            }
+            iterator = logsIterator;
+        }
+        TrainingMetrics metrics = new TrainingMetrics(
+                METRICS_FILENAME.isEmpty() ? null : TrainingMetrics.log(new File(METRICS_FILENAME), METRICS_MAX_MB << 20, METRICS_KEEP),
+                memory);
+        Validator validator = null;
+        if (validationPairs().length > 0) {
+            validator = new Validator(net, dict, corpus, validationPairs(), VALIDATION_BATCH_SIZE, ROW_SIZE, indexedDecoder,
+                    new Sampler(rng, TEMPERATURE, TOP_K, TOP_P), VALIDATION_FILENAME.isEmpty() ? null
+                            : Validator.log(new File(VALIDATION_FILENAME), METRICS_MAX_MB << 20, METRICS_KEEP));
+        } else {
+            System.out.println("The corpus is too small to hold out the validation pairs, the validation is skipped");
+        }
         for (int epoch = 1; epoch < 10000; ++epoch) {
             System.out.println("Epoch " + epoch);
+            iterator.setEpoch(epoch);
             String shift = System.getProperty("dlchat.shift");
             if (epoch == 1 && shift != null) {
-                logsIterator.setCurrentBatch(Integer.valueOf(shift));
+                iterator.setPosition(shift);
             } else {
-                logsIterator.reset();
+                iterator.reset();
             }
             int lastPerc = 0;
-            while (logsIterator.hasNextMacrobatch()) {
-                net.fit(logsIterator);
-                logsIterator.nextMacroBatch();
-                System.out.println("Batch = " + logsIterator.batch());
-                int newPerc = (logsIterator.batch() * 100 / logsIterator.totalBatches());
+            while (iterator.hasNextMacrobatch()) {
+                metrics.start();
+                long fitStart = System.nanoTime();
+                long tokensBefore = iterator.tokens();
+                long stepsBefore = iterator.steps();
+                long examplesBefore = iterator.examples();
+                long waitBefore = iterator.consumerWaitNanos();
+                if (trainer != null) {
+                    trainer.fit(logsIterator);
+                } else {
+                    net.fit(iterator);
+                }
+                metrics.fit(System.nanoTime() - fitStart, iterator.consumerWaitNanos() - waitBefore);
+                if (decoder != null) {
+                    decoder.modelChanged();
+                }
+                iterator.nextMacroBatch();
+                long tokens = iterator.tokens() - tokensBefore;
+                long steps = iterator.steps() - stepsBefore;
+                System.out.println("Batch = " + iterator.batch() + (SHARDS_DIR != null ? ", position = " + iterator.position() : ""));
+                System.out.println(String.format("Padding = %.1f%%", steps == 0 ? 0 : (steps - tokens) * 100.0 / steps));
+                if (logsIterator != null && trainer == null && BATCH_WORKERS > 0) {
+                    System.out.println("Batch queue = " + logsIterator.queueDepth() + ", waited for batches " + logsIterator.consumerWaits()
+                            + " times, " + TimeUnit.NANOSECONDS.toMillis(logsIterator.consumerWaitNanos()) + " ms total");
+                }
+                int newPerc = (int) (iterator.progress() * 100);
                 if (newPerc != lastPerc) {
                     System.out.println("Epoch complete: " + newPerc + "%");
                     lastPerc = newPerc;
                 }
                 if (System.currentTimeMillis() - lastSaveTime > SAVE_EACH_MS) {
-                    saveModel(networkFile);
-                    lastSaveTime = System.currentTimeMillis();
+                    long saveStart = System.nanoTime();
+                    if (saveModel()) {
+                        lastSaveTime = System.currentTimeMillis();
+                    }
+                    metrics.checkpoint(System.nanoTime() - saveStart);
                 }
-                if (System.currentTimeMillis() - lastTestTime > TEST_EACH_MS) {
-                    test();
-                    lastTestTime = System.currentTimeMillis();
+                if (validator != null && System.currentTimeMillis() - lastTestTime > TEST_EACH_MS) {
+                    long testStart = System.nanoTime();
+                    if (validator.submit(net, epoch, iterator.batch())) {
+                        lastTestTime = System.currentTimeMillis();
+                    }
+                    metrics.test(System.nanoTime() - testStart);
                 }
+                metrics.finish(epoch, iterator.batch(), tokens, iterator.examples() - examplesBefore, net.score());
+                System.out.println(metrics.summary());
+            }
+        }
+    }
+
+    // the validation pairs are the last validationLines() pairs of the corpus, they aren't trained on (with the shards the corpus has
+    // the validation lines only). 0 if the corpus is too small (up to 10 lines)
+    private int validationLines() {
+        return Math.max(0, SHARDS_DIR != null ? corpus.size() - 1 : Math.min(VALIDATION_LINES, (corpus.size() - 1) / 10));
+    }
+
+    private int firstValidationLine() {
+        return corpus.size() - 1 - validationLines();
+    }
+
+    // the first lines of the validation pairs. The shards keep the dialogs of the held out lines and leave out the pairs across them,
+    // the corpus in memory has no dialogs so every validation line is a pair with the next one
+    private int[] validationPairs() {
+        if (shardValidationPairs != null) {
+            return shardValidationPairs;
+        }
+        int[] pairs = new int[validationLines()];
+        for (int i = 0; i < pairs.length; ++i) {
+            pairs[i] = firstValidationLine() + i;
+        }
+        return pairs;
+    }
+
+    /*
+     * Writes the inference model and checks that the quantization doesn't hurt: the perplexity on the validation pairs must not grow by
+     * more than EXPORT_TOLERANCE, otherwise the file is deleted and the process fails.
+     */
+    private void exportModel(File file) throws IOException {
+        InferenceModel.Format format = InferenceModel.Format.valueOf(EXPORT_FORMAT.toUpperCase());
+        int[] pairs = validationPairs();
+        if (pairs.length == 0) {
+            System.out.println("Exporting the " + format + " inference model to " + file + " unchecked, there are no validation pairs");
+            InferenceModel.export(net, dict, file, format);
+            return;
+        }
+        PerplexityEvaluator evaluator = new PerplexityEvaluator(corpus, pairs, VALIDATION_BATCH_SIZE, dict.size(), ROW_SIZE,
+                indexedDecoder);
+        double perplexity = evaluator.evaluate(net).perplexity;
+        System.out.println("Exporting the " + format + " inference model to " + file + "...");
+        InferenceModel.export(net, dict, file, format);
+        double exportedPerplexity = evaluator.evaluate(InferenceModel.load(file, new Vocabulary())).perplexity;
+        double change = exportedPerplexity / perplexity - 1;
+        System.out.println(String.format("Perplexity %.3f, exported %.3f (%+.2f%%), the file is %d MB", perplexity, exportedPerplexity,
+                change * 100, file.length() >> 20));
+        if (!(change <= EXPORT_TOLERANCE)) {
+            Files.delete(file.toPath());
+            System.out.println("The perplexity change is over the tolerance of " + EXPORT_TOLERANCE * 100 + "%, the model is deleted");
+            System.exit(1);
+        }
+    }
+
+    private void startServer() throws IOException {
+        InferenceScheduler scheduler = new InferenceScheduler(decoder(), sampler, SERVER_BATCH, SERVER_WAIT_MS);
+        new ChatServer(dict, scheduler, new ResponseGenerator(decoder, dict, sampler, ROW_SIZE), ROW_SIZE).start(SERVER_PORT);
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                return;
             }
+            System.out.println(scheduler.stats());
         }
     }
 
     private void startDialog() throws IOException {
         System.out.println("Dialog started.");
+        ResponseGenerator generator = new ResponseGenerator(decoder(), dict, sampler, ROW_SIZE);
         try (Scanner scanner = new Scanner(System.in)) {
             while (true) {
                 System.out.print("In> ");
-                // input line is appended to conform to the corpus format
-                String line = "1 +++$+++ u11 +++$+++ m0 +++$+++ WALTER +++$+++ " + scanner.nextLine() + "\n";
-                CorpusProcessor dialogProcessor = new CorpusProcessor(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)),
-                        ROW_SIZE, false) {
-                    @Override
-                    protected void processLine(String lastLine) {
-                        List<String> words = new ArrayList<>();
-                        tokenizeLine(lastLine, words, true);
-                        List<Double> wordIdxs = new ArrayList<>();
-                        if (wordsToIndexes(words, wordIdxs)) {
-                            System.out.print("Got words: ");
-                            for (Double idx : wordIdxs) {
-                                System.out.print(revDict.get(idx) + " ");
-                            }
-                            System.out.println();
-                            System.out.print("Out> ");
-                            output(wordIdxs, true);
-                        }
+                String line = scanner.nextLine();
+                int[] words = generator.tokenize(line);
+                if (words.length == 0) {
+                    continue;
+                }
+                System.out.print("Got words: ");
+                for (int word : words) {
+                    System.out.print(dict.word(word) + " ");
+                }
+                System.out.println();
+                System.out.print("Out> ");
+                if (BEAM_WIDTH > 0) {
+                    System.out.println();
+                    for (Decoder.Candidate candidate : generator.nBest(line, BEAM_WIDTH, N_BEST, 1, LENGTH_PENALTY)) {
+                        System.out.print(String.format("[%.3f] ", candidate.score));
+                        printTokens(candidate.tokens, candidate.tokens.length, true);
                     }
-                };
-                dialogProcessor.setDict(dict);
-                dialogProcessor.start();
+                } else {
+                    generator.generate(line, ROW_SIZE - 1, 0, (token, word) -> {
+                        System.out.print(word);
+                        System.out.flush();
+                        return true;
+                    });
+                    System.out.println();
+                }
+                System.out.println("Token latency: " + decoder.tokenLatency().summary());
             }
         }
     }
 
-    private void saveModel(File networkFile) throws IOException {
+    // returns false if the previous save is still in progress
+    private boolean saveModel() {
         System.out.println("Saving the model...");
-        File backup = new File(BACKUP_MODEL_FILENAME);
-        if (networkFile.exists()) {
-            if (backup.exists()) {
-                backup.delete();
-            }
-            networkFile.renameTo(backup);
+        if (!checkpointer.save(net)) {
+            System.out.println("The previous save is still in progress, skipping.");
+            return false;
         }
-        ModelSerializer.writeModel(net, networkFile, true);
-        System.out.println("Done.");
+        return true;
     }
 
     private void test() {
+        int[] pairs = validationPairs();
+        if (pairs.length == 0) {
+            System.out.println("No validation pairs to test on, skipping the test");
+            return;
+        }
         System.out.println("======================== TEST ========================");
-        int selected = rnd.nextInt(corpus.size());
-        List<Double> rowIn = new ArrayList<>(corpus.get(selected));
+        int selected = pairs[rnd.nextInt(pairs.length)];
         System.out.print("In: ");
-        for (Double idx : rowIn) {
-            System.out.print(revDict.get(idx) + " ");
+        for (int i = 0; i < corpus.length(selected); ++i) {
+            System.out.print(dict.fragment(corpus.get(selected, i), i == 0));
         }
         System.out.println();
         System.out.print("Out: ");
-        output(rowIn, true);
+        output(corpus, selected, true);
         System.out.println("====================== TEST END ======================");
     }
 
-    private void output(List<Double> rowIn, boolean printUnknowns) {
-        net.rnnClearPreviousState();
-        Collections.reverse(rowIn);
-        INDArray in = Nd4j.create(ArrayUtils.toPrimitive(rowIn.toArray(new Double[0])), new int[] { 1, 1, rowIn.size() });
-        double[] decodeArr = new double[dict.size()];
-        decodeArr[2] = 1;
-        INDArray decode = Nd4j.create(decodeArr, new int[] { 1, dict.size(), 1 });
-        net.feedForward(new INDArray[] { in, decode }, false);
-        org.deeplearning4j.nn.layers.recurrent.GravesLSTM decoder = (org.deeplearning4j.nn.layers.recurrent.GravesLSTM) net
-                .getLayer("decoder");
-        Layer output = net.getLayer("output");
-        GraphVertex mergeVertex = net.getVertex("merge");
-        INDArray thoughtVector = mergeVertex.getInputs()[1];
-        for (int row = 0; row < ROW_SIZE; ++row) {
-            mergeVertex.setInputs(decode, thoughtVector);
-            INDArray merged = mergeVertex.doForward(false);
-            INDArray activateDec = decoder.rnnTimeStep(merged);
-            INDArray out = output.activate(activateDec, false);
-            double d = rng.nextDouble();
-            double sum = 0.0;
-            int idx = -1;
-            for (int s = 0; s < out.size(1); s++) {
-                sum += out.getDouble(0, s, 0);
-                if (d <= sum) {
-                    idx = s;
-                    if (printUnknowns || s != 0) {
-                        System.out.print(revDict.get((double) s) + " ");
-                    }
-                    break;
-                }
+    private Decoder decoder() {
+        if (decoder == null) {
+            decoder = new Decoder(net, dict.size(), THOUGHT_CACHE_MB << 20, RESPONSE_CACHE_MB << 20);
+            sampler = new Sampler(rng, TEMPERATURE, TOP_K, TOP_P);
+        }
+        return decoder;
+    }
+
+    private void output(TokenCorpus rows, int line, boolean printUnknowns) {
+        Decoder decoder = decoder();
+        if (BEAM_WIDTH > 0) {
+            List<Decoder.Candidate> candidates = decoder.beamSearch(rows, line, BEAM_WIDTH, N_BEST, ROW_SIZE, 1, LENGTH_PENALTY);
+            for (Decoder.Candidate candidate : candidates) {
+                System.out.print(String.format("[%.3f] ", candidate.score));
+                printTokens(candidate.tokens, candidate.tokens.length, printUnknowns);
             }
-            if (idx == 1) {
-                break;
+        } else {
+            int count = decoder.generate(rows, line, sampler, ROW_SIZE, reply);
+            printTokens(reply, count, printUnknowns);
+        }
+        System.out.println("Token latency: " + decoder.tokenLatency().summary());
+        System.out.println("Cache: " + decoder.cacheStats());
+    }
+
+    private void printTokens(int[] tokens, int count, boolean printUnknowns) {
+        boolean first = true;
+        for (int i = 0; i < count; ++i) {
+            if (printUnknowns || tokens[i] != Vocabulary.UNK) {
+                System.out.print(dict.fragment(tokens[i], first));
+                first = false;
             }
-            double[] newDecodeArr = new double[dict.size()];
-            newDecodeArr[idx] = 1;
-            decode = Nd4j.create(newDecodeArr, new int[] { 1, dict.size(), 1 });
         }
         System.out.println();
     }
 
-    private void createDictionary() throws IOException, FileNotFoundException {
-        double idx = 3.0;
-        dict.put("<unk>", 0.0);
-        revDict.put(0.0, "<unk>");
-        dict.put("<eos>", 1.0);
-        revDict.put(1.0, "<eos>");
-        dict.put("<go>", 2.0);
-        revDict.put(2.0, "<go>");
+    private void buildDictionary(String corpusFilename, int threads) throws IOException {
+        dict.add("<unk>"); // Vocabulary.UNK
+        dict.add("<eos>"); // Vocabulary.EOS
+        dict.add("<go>"); // Vocabulary.GO
         for (char c : CHARS.toCharArray()) {
-            if (!dict.containsKey(c)) {
-                dict.put(String.valueOf(c), idx);
-                revDict.put(idx, String.valueOf(c));
-                ++idx;
-            }
+            dict.add(BPE_VOCAB > 0 ? SubwordTokenizer.WORD_START + c : String.valueOf(c));
         }
         System.out.println("Building the dictionary...");
-        CorpusProcessor corpusProcessor = new CorpusProcessor(CORPUS_FILENAME, ROW_SIZE, true);
+        CorpusProcessor corpusProcessor = new CorpusProcessor(corpusFilename, ROW_SIZE, true);
+        corpusProcessor.setParallelism(threads);
         corpusProcessor.start();
-        Map<String, Double> freqs = corpusProcessor.getFreq();
-        Set<String> dictSet = new TreeSet<>(); // the tokens order is preserved for TreeSet
-        Map<Double, Set<String>> freqMap = new TreeMap<>(new Comparator<Double>() {
+        // get most frequent tokens, the tokens of the same frequency are sorted alphabetically
+        int specials = dict.size();
+        if (BPE_VOCAB > 0) {
+            long start = System.nanoTime();
+            int merges = BpeTrainer.learn(corpusProcessor.getFreq(), dict, BPE_VOCAB);
+            System.out.println("Learned " + merges + " subword merges from " + corpusProcessor.getFreq().size() + " words in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } else {
+            dict.select(corpusProcessor.getFreq(), MAX_DICT);
+        }
+        // all of the above means that the dictionary with the same MAX_DICT constraint and made from the same source file will always be
+        // the same, the tokens always correspond to the same number. It's saved with the model anyway so the dialog and the server don't
+        // need the corpus at all (see Checkpointer)
+        System.out.println("Dictionary is ready, size is " + dict.size() + " (" + specials + " special tokens)");
+    }
+
+    /*
+     * Converts the corpus file to the sharded corpus in dir (see ShardWriter) in two streaming passes so the corpus is never in memory as
+     * a whole: the frequencies are counted as usual, then the lines are converted to tokens and written to the shards dialog by dialog.
+     */
+    private void makeShards(File dir) throws IOException {
+        buildDictionary(CORPUS_FILENAME, INGEST_THREADS);
+        System.out.println("Writing the shards to " + dir + "...");
+        ShardWriter writer = new ShardWriter(dir, dict, SHARD_MB << 20, System.getProperty("dlchat.shardGzip") != null, VALIDATION_LINES,
+                ROW_SIZE);
+        CorpusProcessor corpusProcessor = new CorpusProcessor(CORPUS_FILENAME, ROW_SIZE, false) {
+            private boolean newDialog = true;
 
             @Override
-            public int compare(Double o1, Double o2) {
-                return (int) (o2 - o1);
-            }
-        }); // tokens of the same frequency fall under the same key, the order is reversed so the most frequent tokens go first
-        for (Entry<String, Double> entry : freqs.entrySet()) {
-            Set<String> set = freqMap.get(entry.getValue());
-            if (set == null) {
-                set = new TreeSet<>(); // tokens of the same frequency would be sorted alphabetically
-                freqMap.put(entry.getValue(), set);
-            }
-            set.add(entry.getKey());
-        }
-        int cnt = 0;
-        dictSet.addAll(dict.keySet());
-        // get most frequent tokens and put them to dictSet
-        for (Entry<Double, Set<String>> entry : freqMap.entrySet()) {
-            for (String val : entry.getValue()) {
-                if (dictSet.add(val) && ++cnt >= MAX_DICT) {
-                    break;
+            protected void processLine(String line) {
+                int count = indexLine(line, ROW_SIZE - 1);
+                if (count == 0) {
+                    return;
                 }
+                try {
+                    writer.add(tokenIds(), count, newDialog);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                newDialog = false;
             }
-            if (cnt >= MAX_DICT) {
-                break;
-            }
-        }
-        // all of the above means that the dictionary with the same MAX_DICT constraint and made from the same source file will always be
-        // the same, the tokens always correspond to the same number so we don't need to save/restore the dictionary
-        System.out.println("Dictionary is ready, size is " + dictSet.size());
-        // index the dictionary and build the reverse dictionary for lookups
-        for (String word : dictSet) {
-            if (!dict.containsKey(word)) {
-                dict.put(word, idx);
-                revDict.put(idx, word);
-                ++idx;
-            }
-        }
-        System.out.println("Total dictionary size is " + dict.size() + ". Processing the dataset...");
-        corpusProcessor = new CorpusProcessor(CORPUS_FILENAME, ROW_SIZE, false) {
+
             @Override
-            protected void processLine(String lastLine) {
-                ArrayList<String> words = new ArrayList<>();
-                tokenizeLine(lastLine, words, true);
-                if (!words.isEmpty()) {
-                    List<Double> wordIdxs = new ArrayList<>();
-                    if (wordsToIndexes(words, wordIdxs)) {
-                        corpus.add(wordIdxs);
-                    }
-                }
+            protected void dialogEnd() {
+                newDialog = true;
             }
         };
         corpusProcessor.setDict(dict);
         corpusProcessor.start();
-        System.out.println("Done. Corpus size is " + corpus.size());
+        writer.close();
+        System.out.println("Done. " + writer.lines() + " lines in " + writer.shards() + " shards, " + writer.validationPairs()
+                + " validation pairs held out");
+    }
+
+    // cacheFilename may be null to always build from the corpus (the benchmarks do that)
+    void createDictionary(String corpusFilename, String cacheFilename, int threads) throws IOException, FileNotFoundException {
+        CorpusCache cache = cacheFilename == null ? null
+                : new CorpusCache(new File(cacheFilename),
+                        CorpusCache.key(new File(corpusFilename), MAX_DICT, ROW_SIZE, CHARS, CorpusProcessor.SPECIALS, BPE_VOCAB));
+        if (cache != null && cache.load(dict)) {
+            corpus = cache.getCorpus();
+            System.out.println("Loaded the dictionary and the corpus from " + cacheFilename + ", dictionary size is " + dict.size()
+                    + ", corpus size is " + corpus.size());
+            return;
+        }
+        buildDictionary(corpusFilename, threads);
+        System.out.println("Processing the dataset...");
+        corpus = new TokenCorpus(dict.size());
+        CorpusProcessor corpusProcessor = new CorpusProcessor(corpusFilename, ROW_SIZE, false);
+        corpusProcessor.setDict(dict);
+        corpusProcessor.setCorpus(corpus);
+        corpusProcessor.setParallelism(threads);
+        corpusProcessor.start();
+        corpus.trim();
+        System.out.println("Done. Corpus size is " + corpus.size() + " lines, " + corpus.tokenCount() + " tokens, "
+                + corpus.bytesUsed() / 1024 / 1024 + " MB");
+        if (cache != null) {
+            cache.save(dict, corpus);
+        }
     }
 
 }
@@ -0,0 +1,110 @@
+package dlchat;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.javacpp.Pointer;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class MemoryMonitor {
+
+    /*
+     * The off-heap memory of the arrays (the batches, the activations, the gradients, the snapshots) is only released when the garbage
+     * collector finds the INDArrays unreachable, the heap is mostly empty so the collector may not run for a long time while the
+     * off-heap memory runs out. ND4J's answer is the periodic System.gc() every "GC window" milliseconds regardless of the actual memory
+     * use, every call is a full collection and a pause of the training, and the window has to be tuned by trial and error.
+     *
+     * Here a daemon thread checks what JavaCPP has allocated (Pointer.totalBytes(), the same number the off-heap limit
+     * org.bytedeco.javacpp.maxbytes is enforced on) every CHECK_MS and requests a collection only when it's over the high water mark
+     * (a fraction of the limit), at most once per minIntervalMs so the released memory has time to be deallocated. Over the critical
+     * mark it's requested on every check. The periodic GC is turned off. With CUDA the device memory isn't seen here, Main keeps the GC
+     * window there unless dlchat.gcWindow says otherwise.
+     *
+     * The peak use (as sampled by the checks) is kept since the last resetPeak() so the training metrics report it per macrobatch, with
+     * the number and the time of the requested collections.
+     */
+
+    private static final long CHECK_MS = 50;
+    private static final long MB = 1 << 20;
+    private final long limit;
+    private final long highWater;
+    private final long criticalWater;
+    private final long minIntervalNanos;
+    private final boolean collect;
+    private final AtomicLong peak = new AtomicLong();
+    private volatile long gcCount;
+    private volatile long gcNanos;
+    private long lastGc;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "memory-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the marks are fractions of the off-heap limit, without collect the use is only tracked (the periodic GC is left as it is)
+    public MemoryMonitor(double highWater, double criticalWater, long minIntervalMs, boolean collect) {
+        long max = Pointer.maxBytes();
+        limit = max > 0 ? max : Runtime.getRuntime().maxMemory();
+        this.highWater = (long) (limit * highWater);
+        this.criticalWater = (long) (limit * criticalWater);
+        minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        this.collect = collect;
+        lastGc = System.nanoTime() - minIntervalNanos;
+    }
+
+    public void start() {
+        if (collect) {
+            Nd4j.getMemoryManager().togglePeriodicGc(false);
+            System.out.println(String.format("Off-heap GC at %d MB, always at %d MB, the limit is %d MB", highWater / MB,
+                    criticalWater / MB, limit / MB));
+        }
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                System.out.println("Memory check failed: " + e);
+            }
+        }, CHECK_MS, CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        long used = Pointer.totalBytes();
+        peak.accumulateAndGet(used, Math::max);
+        if (!collect || used <= highWater) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (used <= criticalWater && now - lastGc < minIntervalNanos) {
+            return;
+        }
+        Nd4j.getMemoryManager().invokeGc();
+        lastGc = System.nanoTime();
+        gcNanos += lastGc - now;
+        ++gcCount;
+    }
+
+    // the peak starts over from the current use
+    public void resetPeak() {
+        peak.set(Pointer.totalBytes());
+    }
+
+    public long peakBytes() {
+        return Math.max(peak.get(), Pointer.totalBytes());
+    }
+
+    public long limitBytes() {
+        return limit;
+    }
+
+    // the collections requested so far
+    public long gcCount() {
+        return gcCount;
+    }
+
+    public long gcNanos() {
+        return gcNanos;
+    }
+
+}
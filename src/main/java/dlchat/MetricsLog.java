@@ -0,0 +1,117 @@
+package dlchat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class MetricsLog {
+
+    /*
+     * Appends one record per line to a file, CSV with a header line or JSON lines if the file name ends with .jsonl. When the file grows
+     * over maxBytes it's renamed to name.1.ext (the older ones shift to name.2.ext and so on, up to keep files) and a new one is started,
+     * so a long training doesn't fill the disk and the recent history is always there. Every record is flushed, the file can be tailed or
+     * loaded into a spreadsheet while the training runs.
+     */
+
+    private final File file;
+    private final String[] columns;
+    private final boolean json;
+    private final long maxBytes;
+    private final int keep;
+    private Writer writer;
+    private long bytes;
+
+    public MetricsLog(File file, long maxBytes, int keep, String... columns) {
+        this.file = file;
+        this.columns = columns;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        json = file.getName().endsWith(".jsonl");
+    }
+
+    public synchronized void write(Object... values) throws IOException {
+        if (writer != null && bytes > maxBytes) {
+            writer.close();
+            writer = null;
+            roll();
+        }
+        if (writer == null) {
+            open();
+        }
+        StringBuilder sb = new StringBuilder();
+        if (json) {
+            sb.append('{');
+            for (int i = 0; i < columns.length; ++i) {
+                sb.append(i > 0 ? "," : "").append('"').append(columns[i]).append("\":");
+                if (values[i] instanceof Number) {
+                    sb.append(json((Number) values[i]));
+                } else {
+                    sb.append('"').append(values[i]).append('"');
+                }
+            }
+            sb.append('}');
+        } else {
+            for (int i = 0; i < values.length; ++i) {
+                sb.append(i > 0 ? "," : "").append(values[i]);
+            }
+        }
+        append(sb.append('\n').toString());
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    // NaN and infinity aren't valid JSON numbers
+    private static String json(Number value) {
+        double d = value.doubleValue();
+        return Double.isNaN(d) || Double.isInfinite(d) ? "null" : value.toString();
+    }
+
+    private void open() throws IOException {
+        bytes = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        if (!json && bytes == 0) {
+            append(String.join(",", columns) + "\n");
+        }
+    }
+
+    private void append(String line) throws IOException {
+        writer.write(line);
+        writer.flush();
+        bytes += line.length();
+    }
+
+    private void roll() throws IOException {
+        if (keep <= 0) {
+            Files.deleteIfExists(file.toPath());
+            return;
+        }
+        Files.deleteIfExists(rolled(keep).toPath());
+        for (int i = keep - 1; i >= 1; --i) {
+            File rolled = rolled(i);
+            if (rolled.exists()) {
+                Files.move(rolled.toPath(), rolled(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file.toPath(), rolled(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private File rolled(int n) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String rolledName = dot < 0 ? name + "." + n : name.substring(0, dot) + "." + n + name.substring(dot);
+        return new File(file.getAbsoluteFile().getParentFile(), rolledName);
+    }
+
+}
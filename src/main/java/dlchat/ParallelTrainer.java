@@ -0,0 +1,151 @@
+package dlchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.updater.graph.ComputationGraphUpdater;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class ParallelTrainer {
+
+    /*
+     * Data parallel training on one machine. net.fit() keeps only one core busy between the BLAS calls (and the BLAS calls on the small
+     * minibatches don't scale to many cores either), so here every worker thread trains its own replica of the network on its own shard of
+     * the macrobatch (see CorpusIterator.split()). After every worker has fitted averagingFrequency minibatches the parameters and the
+     * updater state of the replicas are averaged and copied back to all of them, the same scheme as DL4J's ParallelWrapper uses.
+     *
+     * The first replica is the network itself so after fit() returns the network has the averaged parameters and can be tested, saved
+     * and resumed by the batch number as usual. Only the replicas that fitted something in a round are averaged, a shard that ran out of
+     * batches doesn't pull the others back. The sums are collected in the same two arrays every round, the averaging runs every few
+     * minibatches and would leave two parameter sized arrays for the garbage collector each time.
+     *
+     * With several workers every one of them runs its own BLAS calls, limit the BLAS threads (OMP_NUM_THREADS) to about cores / workers.
+     * The replicas are cloned on the device of the thread that creates the trainer and the worker threads are attached to the same one
+     * (a CUDA backend would spread the new threads over the devices otherwise and every fit would move the replica's arrays), so on a
+     * GPU the workers share one device, it's no multi-GPU training.
+     */
+
+    private final ComputationGraph[] replicas;
+    private final int averagingFrequency;
+    private final ExecutorService executor;
+    private INDArray paramsSum;
+    private INDArray updaterSum;
+
+    public ParallelTrainer(ComputationGraph net, int workers, int averagingFrequency) {
+        this.averagingFrequency = averagingFrequency;
+        replicas = new ComputationGraph[workers];
+        replicas[0] = net;
+        for (int i = 1; i < workers; ++i) {
+            replicas[i] = net.clone();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        Integer device = Nd4j.getAffinityManager().getDeviceForCurrentThread();
+        executor = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "trainer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            Nd4j.getAffinityManager().attachThreadToDevice(thread, device);
+            return thread;
+        });
+    }
+
+    public int workers() {
+        return replicas.length;
+    }
+
+    // trains the replicas on the rest of the current macrobatch of the iterator, the network is averaged when it returns
+    public void fit(CorpusIterator iterator) {
+        List<CorpusIterator.Shard> shards = iterator.split(replicas.length);
+        List<Future<Integer>> rounds = new ArrayList<>(replicas.length);
+        boolean[] fitted = new boolean[replicas.length];
+        while (true) {
+            rounds.clear();
+            for (int i = 0; i < replicas.length; ++i) {
+                ComputationGraph replica = replicas[i];
+                CorpusIterator.Shard shard = shards.get(i);
+                rounds.add(executor.submit(() -> {
+                    int count = 0;
+                    while (count < averagingFrequency && shard.hasNext()) {
+                        replica.fit(shard.next());
+                        ++count;
+                    }
+                    return count;
+                }));
+            }
+            int total = 0;
+            for (int i = 0; i < replicas.length; ++i) {
+                int count = get(rounds.get(i));
+                fitted[i] = count > 0;
+                total += count;
+            }
+            if (total == 0) {
+                return;
+            }
+            average(fitted);
+        }
+    }
+
+    private static int get(Future<Integer> round) {
+        try {
+            return round.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Training failed", e.getCause());
+        }
+    }
+
+    private void average(boolean[] fitted) {
+        if (replicas.length == 1) {
+            return;
+        }
+        INDArray params = null;
+        INDArray updaterState = null;
+        int count = 0;
+        for (int i = 0; i < replicas.length; ++i) {
+            if (!fitted[i]) {
+                continue;
+            }
+            params = params == null ? (paramsSum = copy(replicas[i].params(), paramsSum)) : params.addi(replicas[i].params());
+            INDArray state = updaterState(replicas[i]);
+            if (state != null) {
+                updaterState = updaterState == null ? (updaterSum = copy(state, updaterSum)) : updaterState.addi(state);
+            }
+            ++count;
+        }
+        params.divi(count);
+        if (updaterState != null) {
+            updaterState.divi(count);
+        }
+        for (ComputationGraph replica : replicas) {
+            replica.setParams(params);
+            INDArray state = updaterState(replica);
+            if (state != null && updaterState != null) {
+                state.assign(updaterState);
+            }
+        }
+    }
+
+    // copies array to buffer if it has the same length, otherwise to a new array
+    private static INDArray copy(INDArray array, INDArray buffer) {
+        return buffer != null && buffer.length() == array.length() ? buffer.assign(array) : array.dup();
+    }
+
+    // null until the replica's updater is created by the first fit
+    private static INDArray updaterState(ComputationGraph replica) {
+        ComputationGraphUpdater updater = replica.getUpdater();
+        return updater != null ? updater.getStateViewArray() : null;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,81 @@
+package dlchat;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class PerplexityEvaluator {
+
+    /*
+     * Perplexity and token accuracy of the network on a set of the corpus line pairs. The perplexity is exp of the mean cross entropy
+     * per predicted token (the response tokens and <eos>, the padding is masked out), the accuracy is the share of those tokens that are
+     * the argmax of the softmax given the correct previous tokens (teacher forcing, not the generated responses). The batches are built
+     * the same way as for the training but only as long as their longest lines, the output is a batch x dictSize x steps tensor so it
+     * pays off. The network runs forward only with the full softmax (the sampled softmax is used for the training only).
+     */
+
+    private static final double EPS = 1e-10; // same as LossSparseMCXENT
+    private final TokenCorpus corpus;
+    private final int[] pairs;
+    private final int batchSize;
+    private final BatchBuilder batchBuilder;
+    private final int[] batchLines;
+
+    public static class Result {
+        public final double perplexity;
+        public final double accuracy;
+        public final long tokens;
+
+        private Result(double perplexity, double accuracy, long tokens) {
+            this.perplexity = perplexity;
+            this.accuracy = accuracy;
+            this.tokens = tokens;
+        }
+    }
+
+    // pairs are the first lines of the pairs, the following lines are the responses
+    public PerplexityEvaluator(TokenCorpus corpus, int[] pairs, int batchSize, int dictSize, int rowSize, boolean indexed) {
+        this.corpus = corpus;
+        this.pairs = pairs;
+        this.batchSize = batchSize;
+        // the default ring is enough, the batches are used synchronously
+        batchBuilder = new BatchBuilder(dictSize, rowSize, indexed);
+        batchLines = new int[batchSize];
+    }
+
+    public synchronized Result evaluate(ComputationGraph net) {
+        double loss = 0;
+        long tokens = 0;
+        long correct = 0;
+        for (int start = 0; start < pairs.length; start += batchSize) {
+            int count = Math.min(batchSize, pairs.length - start);
+            int inputLength = 1;
+            int outputLength = 1;
+            for (int j = 0; j < count; ++j) {
+                int line = batchLines[j] = pairs[start + j];
+                inputLength = Math.max(inputLength, corpus.length(line));
+                outputLength = Math.max(outputLength, BatchBuilder.outputLength(corpus, line));
+            }
+            MultiDataSet batch = batchBuilder.build(corpus, batchLines, count, inputLength, outputLength);
+            net.setLayerMaskArrays(batch.getFeaturesMaskArrays(), batch.getLabelsMaskArrays());
+            INDArray output = net.output(false, batch.getFeatures())[0];
+            net.clearLayerMaskArrays();
+            INDArray predicted = Nd4j.argMax(output, 1);
+            for (int j = 0; j < count; ++j) {
+                int line = batchLines[j];
+                int length = BatchBuilder.outputLength(corpus, line);
+                for (int t = 0; t < length; ++t) {
+                    int label = t < length - 1 ? corpus.get(line + 1, t) : Vocabulary.EOS;
+                    loss -= Math.log(Math.max(output.getDouble(j, label, t), EPS));
+                    if ((int) predicted.getDouble(j, t) == label) {
+                        ++correct;
+                    }
+                }
+                tokens += length;
+            }
+        }
+        return tokens == 0 ? new Result(Double.NaN, Double.NaN, 0) : new Result(Math.exp(loss / tokens), (double) correct / tokens, tokens);
+    }
+
+}
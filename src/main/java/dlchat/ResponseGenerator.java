@@ -0,0 +1,196 @@
+package dlchat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ResponseGenerator {
+
+    /*
+     * In-process API to talk to the model: the phrase is tokenized directly (the same way as the corpus, see Tokenizer and
+     * SubwordTokenizer) and the response tokens are passed to the caller as soon as they are generated so the first word is there after
+     * one decoder step, not after the whole response. There's the callback flavor (generate()) and the iterator flavor (stream()), both
+     * can be stopped early and limited by the number of tokens and a deadline.
+     *
+     * Thread safe, the generations are serialized because the Decoder (the network RNN state) can only do one at a time. Use
+     * InferenceScheduler to decode many requests together.
+     */
+
+    public enum StopReason {
+        EOS, MAX_TOKENS, DEADLINE, CANCELLED
+    }
+
+    public interface Listener {
+        // word is the text to append to the response so far (see Vocabulary.fragment()), return false to cancel the generation
+        boolean onWord(int token, String word);
+    }
+
+    public static class Response {
+        public final int[] tokens; // without <eos>
+        public final String text;
+        public final StopReason reason;
+
+        public Response(int[] tokens, String text, StopReason reason) {
+            this.tokens = tokens;
+            this.text = text;
+            this.reason = reason;
+        }
+    }
+
+    private final Decoder decoder;
+    private final Vocabulary dict;
+    private final Sampler sampler;
+    private final int rowSize;
+    private final ThreadLocal<Tokenizer> tokenizers = ThreadLocal.withInitial(() -> new Tokenizer(CorpusProcessor.SPECIALS));
+    private final ThreadLocal<SubwordTokenizer> subwordTokenizers; // null unless the dictionary is made of subwords
+    private final ExecutorService streams = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "response-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ResponseGenerator(Decoder decoder, Vocabulary dict, Sampler sampler, int rowSize) {
+        this.decoder = decoder;
+        this.dict = dict;
+        this.sampler = sampler;
+        this.rowSize = rowSize;
+        subwordTokenizers = dict.isSubword() ? ThreadLocal.withInitial(() -> new SubwordTokenizer(dict)) : null;
+    }
+
+    // the token ids of the phrase as the encoder sees them (lowercased, unknown words are <unk>, no more than rowSize - 1 tokens)
+    public int[] tokenize(String text) {
+        if (subwordTokenizers != null) {
+            SubwordTokenizer tokenizer = subwordTokenizers.get();
+            int count = tokenizer.tokenize(text.toLowerCase(), rowSize - 1);
+            return Arrays.copyOf(tokenizer.ids(), count);
+        }
+        Tokenizer tokenizer = tokenizers.get();
+        int count = tokenizer.tokenize(text.toLowerCase(), dict.index(), true, false, Vocabulary.UNK, rowSize - 1);
+        return Arrays.copyOf(tokenizer.ids(), count);
+    }
+
+    /*
+     * Generates the response to the phrase, the listener (may be null) gets every word as it's generated. maxTokens doesn't count
+     * <eos>, deadline is System.nanoTime() based, 0 means none.
+     */
+    public Response generate(String text, int maxTokens, long deadline, Listener listener) {
+        int[] input = tokenize(text);
+        if (input.length == 0) {
+            return new Response(new int[0], "", StopReason.EOS);
+        }
+        int limit = Math.min(maxTokens + 1, rowSize);
+        int[] result = new int[limit];
+        StopReason[] reason = { StopReason.MAX_TOKENS };
+        boolean[] first = { true };
+        int count;
+        synchronized (decoder) {
+            count = decoder.generate(input, sampler, limit, result, token -> {
+                if (token == Vocabulary.EOS) {
+                    reason[0] = StopReason.EOS;
+                    return true;
+                }
+                if (listener != null && !listener.onWord(token, dict.fragment(token, first[0]))) {
+                    reason[0] = StopReason.CANCELLED;
+                    return false;
+                }
+                first[0] = false;
+                if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                    reason[0] = StopReason.DEADLINE;
+                    return false;
+                }
+                return true;
+            });
+        }
+        if (count > 0 && result[count - 1] == Vocabulary.EOS) {
+            --count;
+        }
+        count = Math.min(count, maxTokens);
+        return new Response(Arrays.copyOf(result, count), dict.text(result, count), reason[0]);
+    }
+
+    // the N best responses found with the beam search, see Decoder.beamSearch()
+    public List<Decoder.Candidate> nBest(String text, int width, int nBest, int minLength, double lengthPenalty) {
+        int[] input = tokenize(text);
+        synchronized (decoder) {
+            return decoder.beamSearch(input, width, nBest, rowSize, minLength, lengthPenalty);
+        }
+    }
+
+    // the words of the response (the text fragments, see Listener) as an iterator, the generation runs in the background, close()
+    // cancels it
+    public WordStream stream(String text, int maxTokens, long deadline) {
+        WordStream stream = new WordStream();
+        streams.submit(() -> {
+            try {
+                stream.done(generate(text, maxTokens, deadline, (token, word) -> stream.add(word)));
+            } catch (RuntimeException e) {
+                stream.fail(e);
+            }
+        });
+        return stream;
+    }
+
+    public static class WordStream implements Iterator<String>, AutoCloseable {
+        private static final Object END = new Object();
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private volatile boolean cancelled;
+        private volatile Response response;
+        private Object next;
+
+        private boolean add(String word) {
+            queue.add(word);
+            return !cancelled;
+        }
+
+        private void done(Response response) {
+            this.response = response;
+            queue.add(END);
+        }
+
+        private void fail(RuntimeException e) {
+            queue.add(e);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (next instanceof RuntimeException) {
+                throw (RuntimeException) next;
+            }
+            return next != END;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String word = (String) next;
+            next = null;
+            return word;
+        }
+
+        // the whole response after the iteration has ended, null before that
+        public Response response() {
+            return response;
+        }
+
+        @Override
+        public void close() {
+            cancelled = true;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package dlchat;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+
+@SuppressWarnings("serial")
+public class SampledScoreListener implements IterationListener {
+
+    /*
+     * ScoreIterationListener(1) prints a line on every iteration, with the small minibatches that's thousands of lines per minute and the
+     * console output alone takes noticeable time. This one prints the score at most once per interval, the other iterations only count
+     * and compare the time.
+     */
+
+    private final long intervalNanos;
+    private long lastPrint;
+    private long iterations;
+    private boolean invoked;
+
+    public SampledScoreListener(long intervalMs) {
+        intervalNanos = intervalMs * 1000000L;
+        lastPrint = System.nanoTime() - intervalNanos; // print the first one
+    }
+
+    @Override
+    public boolean invoked() {
+        return invoked;
+    }
+
+    @Override
+    public void invoke() {
+        invoked = true;
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration) {
+        invoke();
+        ++iterations;
+        long now = System.nanoTime();
+        if (now - lastPrint < intervalNanos) {
+            return;
+        }
+        lastPrint = now;
+        System.out.println("Score at iteration " + iterations + " is " + model.score());
+    }
+
+    public long iterations() {
+        return iterations;
+    }
+
+}
@@ -0,0 +1,224 @@
+package dlchat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.deeplearning4j.berkeley.Pair;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.gradient.DefaultGradient;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.layers.recurrent.RnnOutputLayer;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.util.TimeSeriesUtils;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+@SuppressWarnings("serial")
+public class SampledSoftmaxLayer extends RnnOutputLayer {
+
+    /*
+     * The full softmax output layer computes hiddenWidth x dictSize weights for every time step of every row and then the gradient of
+     * the same size, with a large dictionary that's most of the training. Here the training pass only computes the softmax over a small
+     * set of candidate classes shared by the minibatch: the labels of the minibatch plus SampledSoftmaxOutputLayer.getSampled() classes
+     * sampled from the noise distribution (the word frequencies ^ 0.75 like in word2vec, with an alias table so a sample is O(1)). The
+     * logits of the sampled classes are corrected by the log of their probability to be in the sample so the result approximates the full
+     * softmax (Jean et al., https://arxiv.org/abs/1412.2007). The masked (padding) time steps are skipped altogether.
+     *
+     * So the cost per time step is about hiddenWidth x (labels + sampled) instead of hiddenWidth x dictSize. Only the candidate columns of
+     * the weight gradient are non-zero. The inference (activate()) and the evaluation score are the usual full softmax, the output is the
+     * same distribution over the entire dictionary as with RnnOutputLayer.
+     *
+     * The labels must be token indexes (LossSparseMCXENT, the indexed decoder layout).
+     */
+
+    private static final double EPS = 1e-10;
+    private final Random rng = new Random();
+    private double[] noise; // the distribution the tables are made for
+    private double[] prob; // normalized class probabilities
+    private double[] aliasProb;
+    private int[] alias;
+    private int[] position; // class -> index in the candidates, -1 if it's not there
+    private double loss;
+
+    public SampledSoftmaxLayer(NeuralNetConfiguration conf) {
+        super(conf);
+    }
+
+    @Override
+    public Pair<Gradient, INDArray> backpropGradient(INDArray epsilon) {
+        SampledSoftmaxOutputLayer layerConf = (SampledSoftmaxOutputLayer) conf.getLayer();
+        int dictSize = layerConf.getNOut();
+        prepare(layerConf.noise(), dictSize);
+        INDArray input2d = TimeSeriesUtils.reshape3dTo2d(input);
+        INDArray labels2d = TimeSeriesUtils.reshape3dTo2d(getLabels());
+        if (labels2d.size(1) != 1) {
+            throw new IllegalStateException("Sampled softmax requires token index labels, got " + labels2d.size(1) + " columns");
+        }
+        INDArray mask = maskArray == null ? null : TimeSeriesUtils.reshapeTimeSeriesMaskToVector(maskArray);
+        int rows = input2d.size(0);
+        int hidden = input2d.size(1);
+        // the unmasked rows, their labels are the first candidates
+        int[] active = new int[rows];
+        int[] targets = new int[rows];
+        double[] weights = new double[rows];
+        int[] candidates = new int[rows + layerConf.getSampled()];
+        int count = 0;
+        int candidateCount = 0;
+        for (int r = 0; r < rows; ++r) {
+            double weight = mask == null ? 1 : mask.getDouble(r);
+            if (weight == 0) {
+                continue;
+            }
+            int label = (int) labels2d.getDouble(r);
+            if (position[label] < 0) {
+                position[label] = candidateCount;
+                candidates[candidateCount++] = label;
+            }
+            active[count] = r;
+            targets[count] = position[label];
+            weights[count++] = weight;
+        }
+        int labelCount = candidateCount;
+        for (int s = 0; s < layerConf.getSampled(); ++s) {
+            int sample = sample();
+            if (position[sample] < 0) {
+                position[sample] = candidateCount;
+                candidates[candidateCount++] = sample;
+            }
+        }
+        for (int i = 0; i < candidateCount; ++i) {
+            position[candidates[i]] = -1;
+        }
+        INDArray weightGrad = gradientViews.get(DefaultParamInitializer.WEIGHT_KEY).assign(0);
+        INDArray biasGrad = gradientViews.get(DefaultParamInitializer.BIAS_KEY).assign(0);
+        INDArray epsilon2d;
+        loss = 0;
+        if (count > 0) {
+            int[] columns = Arrays.copyOf(candidates, candidateCount);
+            int[] activeRows = Arrays.copyOf(active, count);
+            INDArray w = getParam(DefaultParamInitializer.WEIGHT_KEY).getColumns(columns);
+            INDArray h = input2d.getRows(activeRows);
+            INDArray logits = h.mmul(w).addiRowVector(getParam(DefaultParamInitializer.BIAS_KEY).getColumns(columns));
+            if (candidateCount > labelCount) {
+                INDArray correction = Nd4j.zeros(1, candidateCount);
+                for (int j = labelCount; j < candidateCount; ++j) {
+                    correction.putScalar(j, Math.log(Math.max(inclusionProbability(columns[j], layerConf.getSampled()), EPS)));
+                }
+                logits.subiRowVector(correction);
+            }
+            // softmax - one-hot is the gradient of the cross entropy by the logits
+            INDArray delta = layerConf.getActivationFn().getActivation(logits, true);
+            for (int i = 0; i < count; ++i) {
+                double p = delta.getDouble(i, targets[i]);
+                loss -= weights[i] * Math.log(Math.max(p, EPS));
+                delta.putScalar(i, targets[i], p - 1);
+                if (weights[i] != 1) {
+                    delta.getRow(i).muli(weights[i]);
+                }
+            }
+            // the candidate columns are scattered through the buffers of the zeroed gradient views by the offsets, one native op per
+            // column would be thousands of calls per step
+            float[] candidateWeightGrad = h.transpose().mmul(delta).dup('c').data().asFloat();
+            float[] candidateBiasGrad = delta.sum(0).dup('c').data().asFloat();
+            DataBuffer weightData = weightGrad.data();
+            DataBuffer biasData = biasGrad.data();
+            int rowStride = weightGrad.stride(0);
+            int columnStride = weightGrad.stride(1);
+            for (int j = 0; j < candidateCount; ++j) {
+                long column = weightGrad.offset() + (long) columns[j] * columnStride;
+                for (int k = 0; k < hidden; ++k) {
+                    weightData.put(column + (long) k * rowStride, candidateWeightGrad[k * candidateCount + j]);
+                }
+                biasData.put(biasGrad.offset() + (long) columns[j] * biasGrad.stride(1), candidateBiasGrad[j]);
+            }
+            // same for the rows of the active time steps
+            float[] activeEpsilon = delta.mmul(w.transpose()).dup('c').data().asFloat();
+            float[] epsilonData = new float[rows * hidden];
+            for (int i = 0; i < count; ++i) {
+                System.arraycopy(activeEpsilon, i * hidden, epsilonData, activeRows[i] * hidden, hidden);
+            }
+            epsilon2d = Nd4j.create(epsilonData, new int[] { rows, hidden }, 'c');
+        } else {
+            epsilon2d = Nd4j.zeros(rows, hidden);
+        }
+        Gradient gradient = new DefaultGradient();
+        gradient.gradientForVariable().put(DefaultParamInitializer.WEIGHT_KEY, weightGrad);
+        gradient.gradientForVariable().put(DefaultParamInitializer.BIAS_KEY, biasGrad);
+        return new Pair<>(gradient, TimeSeriesUtils.reshape2dTo3d(epsilon2d, input.size(0)));
+    }
+
+    // the training score is the sampled loss of the last backprop, the full softmax is only computed for the evaluation
+    @Override
+    public double computeScore(double fullNetworkL1, double fullNetworkL2, boolean training) {
+        if (!training) {
+            return super.computeScore(fullNetworkL1, fullNetworkL2, training);
+        }
+        return (loss + fullNetworkL1 + fullNetworkL2) / input.size(0);
+    }
+
+    // (re)builds the sampling tables if the noise distribution has changed
+    private void prepare(double[] noise, int dictSize) {
+        if (position == null || position.length != dictSize) {
+            position = new int[dictSize];
+            Arrays.fill(position, -1);
+        }
+        if (prob != null && noise == this.noise) {
+            return;
+        }
+        this.noise = noise;
+        prob = new double[dictSize];
+        double total = 0;
+        for (int i = 0; i < dictSize; ++i) {
+            total += noise == null ? 1 : noise[i];
+        }
+        for (int i = 0; i < dictSize; ++i) {
+            prob[i] = (noise == null ? 1 : noise[i]) / total;
+        }
+        // Vose's alias method: every cell holds one class with aliasProb and its alias with the rest
+        aliasProb = new double[dictSize];
+        alias = new int[dictSize];
+        int[] small = new int[dictSize];
+        int[] large = new int[dictSize];
+        int smallCount = 0;
+        int largeCount = 0;
+        double[] scaled = new double[dictSize];
+        for (int i = 0; i < dictSize; ++i) {
+            scaled[i] = prob[i] * dictSize;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[--largeCount];
+            aliasProb[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] += scaled[s] - 1;
+            if (scaled[l] < 1) {
+                small[smallCount++] = l;
+            } else {
+                large[largeCount++] = l;
+            }
+        }
+        while (largeCount > 0) {
+            aliasProb[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            aliasProb[small[--smallCount]] = 1; // rounding leftovers
+        }
+    }
+
+    private int sample() {
+        int cell = rng.nextInt(prob.length);
+        return rng.nextDouble() < aliasProb[cell] ? cell : alias[cell];
+    }
+
+    // the probability that the class gets into the sample at least once
+    private double inclusionProbability(int cls, int sampled) {
+        return -Math.expm1(sampled * Math.log1p(-prob[cls]));
+    }
+
+}
@@ -0,0 +1,109 @@
+package dlchat;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+@SuppressWarnings("serial")
+public class SampledSoftmaxOutputLayer extends RnnOutputLayer {
+
+    /*
+     * Configuration of the output layer trained with the sampled softmax, see SampledSoftmaxLayer. It's the usual softmax RnnOutputLayer
+     * (same parameters, same full softmax output for the inference) plus the number of the sampled classes per minibatch, so a network
+     * trained this way is saved and restored by ModelSerializer like any other.
+     *
+     * The noise distribution the classes are sampled from is not a part of the saved configuration (it's dictSize numbers), set it with
+     * noise() after the network is created or loaded. Until then the classes are sampled uniformly. The configuration clones share it so
+     * the replicas of the network (see ParallelTrainer) get it too.
+     */
+
+    private int sampled;
+    private transient double[] noise;
+
+    public SampledSoftmaxOutputLayer() {
+        // for the JSON deserialization, see Builder otherwise
+    }
+
+    public int getSampled() {
+        return sampled;
+    }
+
+    public void setSampled(int sampled) {
+        this.sampled = sampled;
+    }
+
+    // the unnormalized class weights to sample from or null for the uniform sampling
+    public double[] noise() {
+        return noise;
+    }
+
+    public void noise(double[] noise) {
+        this.noise = noise;
+    }
+
+    // the layer must have the softmax activation and LossSparseMCXENT (token index labels)
+    public static class Builder extends RnnOutputLayer.Builder {
+        private final int sampled;
+
+        public Builder(int sampled) {
+            this.sampled = sampled;
+        }
+
+        /*
+         * RnnOutputLayer(Builder) is private so the subclass can't pass the builder up like DL4J's layers do, build() hands the settings
+         * to the setters the way the Layer, FeedForwardLayer and BaseOutputLayer constructors take them from the builder.
+         */
+        @Override
+        public SampledSoftmaxOutputLayer build() {
+            SampledSoftmaxOutputLayer layer = new SampledSoftmaxOutputLayer();
+            layer.setLayerName(layerName);
+            layer.setActivationFn(activationFn);
+            layer.setWeightInit(weightInit);
+            layer.setBiasInit(biasInit);
+            layer.setDist(dist);
+            layer.setLearningRate(learningRate);
+            layer.setBiasLearningRate(biasLearningRate);
+            layer.setLearningRateSchedule(learningRateSchedule);
+            layer.setMomentum(momentum);
+            layer.setMomentumSchedule(momentumAfter);
+            layer.setL1(l1);
+            layer.setL2(l2);
+            layer.setL1Bias(l1Bias);
+            layer.setL2Bias(l2Bias);
+            layer.setDropOut(dropOut);
+            layer.setUpdater(updater);
+            layer.setRho(rho);
+            layer.setEpsilon(epsilon);
+            layer.setRmsDecay(rmsDecay);
+            layer.setAdamMeanDecay(adamMeanDecay);
+            layer.setAdamVarDecay(adamVarDecay);
+            layer.setGradientNormalization(gradientNormalization);
+            layer.setGradientNormalizationThreshold(gradientNormalizationThreshold);
+            layer.setLearningRatePolicy(learningRatePolicy);
+            layer.setNIn(nIn);
+            layer.setNOut(nOut);
+            layer.setLossFn(lossFn);
+            layer.setSampled(sampled);
+            return layer;
+        }
+    }
+
+    @Override
+    public Layer instantiate(NeuralNetConfiguration conf, Collection<IterationListener> iterationListeners, int layerIndex,
+            INDArray layerParamsView, boolean initializeParams) {
+        SampledSoftmaxLayer layer = new SampledSoftmaxLayer(conf);
+        layer.setListeners(iterationListeners);
+        layer.setIndex(layerIndex);
+        layer.setParamsViewArray(layerParamsView);
+        Map<String, INDArray> paramTable = initializer().init(conf, layerParamsView, initializeParams);
+        layer.setParamTable(paramTable);
+        layer.setConf(conf);
+        return layer;
+    }
+
+}
@@ -0,0 +1,125 @@
+package dlchat;
+
+import java.util.Random;
+
+public class Sampler {
+
+    /*
+     * Picks a token from the softmax probabilities. Temperature below 1 makes the distribution sharper (closer to argmax), above 1 flatter.
+     * topK keeps only the k most probable tokens, topP keeps the most probable tokens until their total probability reaches p (nucleus
+     * sampling), both are off with 0 and 1 respectively. The candidates are taken from a max-heap of the token indexes so only the
+     * selected ones are really ordered, it's O(dictSize + selected * log dictSize) and no sorting of the whole dictionary.
+     *
+     * Works on a primitive array and allocates nothing after the first call. Not thread safe.
+     */
+
+    private final Random rng;
+    private final double temperature;
+    private final int topK;
+    private final double topP;
+    private int[] heap = new int[0];
+
+    public Sampler(Random rng, double temperature, int topK, double topP) {
+        this.rng = rng;
+        this.temperature = temperature;
+        this.topK = topK;
+        this.topP = topP;
+    }
+
+    // always picks the most probable token, the same input gives the same response
+    public boolean isDeterministic() {
+        return topK == 1;
+    }
+
+    // samples a token from probs[0..n), probs may be modified
+    public int sample(double[] probs, int n) {
+        return sample(probs, 0, n);
+    }
+
+    // samples a token from probs[offset..offset + n), the token is relative to offset
+    public int sample(double[] probs, int offset, int n) {
+        if (temperature != 1.0) {
+            double power = 1.0 / temperature;
+            for (int i = 0; i < n; ++i) {
+                probs[offset + i] = Math.pow(probs[offset + i], power);
+            }
+        }
+        if (topK <= 0 && topP >= 1.0) {
+            double total = 0;
+            for (int i = 0; i < n; ++i) {
+                total += probs[offset + i];
+            }
+            double d = rng.nextDouble() * total;
+            double sum = 0;
+            for (int i = 0; i < n; ++i) {
+                sum += probs[offset + i];
+                if (d < sum) {
+                    return i;
+                }
+            }
+            return n - 1;
+        }
+        double total = 0;
+        for (int i = 0; i < n; ++i) {
+            total += probs[offset + i];
+        }
+        if (heap.length < n) {
+            heap = new int[n];
+        }
+        for (int i = 0; i < n; ++i) {
+            heap[i] = i;
+        }
+        for (int i = n / 2 - 1; i >= 0; --i) {
+            siftDown(probs, offset, i, n);
+        }
+        // pop the most probable tokens, every popped one goes to the end of the array like in heap sort
+        int limit = topK > 0 ? Math.min(topK, n) : n;
+        double mass = 0;
+        int size = n;
+        while (n - size < limit && mass < topP * total) {
+            int top = heap[0];
+            mass += probs[offset + top];
+            heap[0] = heap[--size];
+            heap[size] = top;
+            siftDown(probs, offset, 0, size);
+        }
+        double d = rng.nextDouble() * mass;
+        double sum = 0;
+        for (int i = n - 1; i >= size; --i) {
+            sum += probs[offset + heap[i]];
+            if (d < sum) {
+                return heap[i];
+            }
+        }
+        return heap[size];
+    }
+
+    // the most probable token
+    public static int argMax(double[] probs, int n) {
+        int best = 0;
+        for (int i = 1; i < n; ++i) {
+            if (probs[i] > probs[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void siftDown(double[] probs, int offset, int pos, int size) {
+        int item = heap[pos];
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size && probs[offset + heap[child + 1]] > probs[offset + heap[child]]) {
+                ++child;
+            }
+            if (probs[offset + heap[child]] <= probs[offset + item]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+
+}
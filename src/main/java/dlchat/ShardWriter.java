@@ -0,0 +1,176 @@
+package dlchat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+public class ShardWriter {
+
+    /*
+     * Writes the tokenized corpus as a directory of shard files that ShardedCorpusIterator streams from, for the corpora that don't fit
+     * into the heap as a TokenCorpus. The directory has:
+     *
+     * - vocabulary.bin, the dictionary (see Vocabulary.write())
+     *
+     * - validation.bin, the last holdOut + 1 lines as a TokenCorpus (see TokenCorpus.write()), the validation pairs that are never trained
+     * on. The writer keeps a ring of that many lines and writes a line to the shards only when it falls out of the ring.
+     *
+     * - validation-pairs.bin, the validation pairs as the count followed by the first line of every pair (ints, big endian). The held out
+     * lines keep the dialog boundaries this way: a line and the next one are a pair only if the next one doesn't start a dialog, the
+     * same as for the pairs in the shards.
+     *
+     * - shard-00000.bin, shard-00001.bin... (or .bin.gz if compressed) of up to maxShardBytes of uncompressed data each. Layout (big
+     * endian): magic, version, compact flag (the tokens are 16 bit), line count, then every line is an int with the token count and the
+     * new dialog flag in the highest bit followed by the tokens. A dialog that starts near the end of a full shard (the last 1/16) goes
+     * to the next one, a longer dialog is cut at the shard end and continues in the next shard as a new dialog.
+     *
+     * A shard is collected in memory and written at once (to a temporary file renamed when complete) so the header has the line count,
+     * the memory use is bounded by maxShardBytes.
+     */
+
+    static final int MAGIC = 0x444c4353; // "DLCS"
+    static final int VERSION = 1;
+    static final int NEW_DIALOG = 1 << 31;
+    static final String VOCABULARY = "vocabulary.bin";
+    static final String VALIDATION = "validation.bin";
+    static final String VALIDATION_PAIRS = "validation-pairs.bin";
+    static final String SHARD_PREFIX = "shard-";
+    private final File dir;
+    private final long maxShardBytes;
+    private final boolean gzip;
+    private final int dictSize;
+    private final boolean compact;
+    private final ByteArrayOutputStream shard = new ByteArrayOutputStream(1 << 20);
+    private final DataOutputStream shardData = new DataOutputStream(shard);
+    private int shardLines;
+    private int shards;
+    private long lines;
+    private boolean dialogInShard; // the current dialog has lines in the current shard
+    private final int[][] ring; // the last lines, ring[(next + i) % length] is the i-th oldest
+    private final int[] ringLengths;
+    private final boolean[] ringNewDialog;
+    private int ringNext;
+    private int ringSize;
+    private int validationPairs;
+
+    public ShardWriter(File dir, Vocabulary dict, long maxShardBytes, boolean gzip, int holdOut, int rowSize) throws IOException {
+        this.dir = dir;
+        this.maxShardBytes = maxShardBytes;
+        this.gzip = gzip;
+        dictSize = dict.size();
+        compact = dictSize <= 1 << 16;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        ring = new int[holdOut + 1][rowSize];
+        ringLengths = new int[holdOut + 1];
+        ringNewDialog = new boolean[holdOut + 1];
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, VOCABULARY))))) {
+            dict.write(os);
+        }
+    }
+
+    public void add(int[] tokens, int len, boolean newDialog) throws IOException {
+        if (ringSize == ring.length) {
+            write(ring[ringNext], ringLengths[ringNext], ringNewDialog[ringNext]);
+        } else {
+            ++ringSize;
+        }
+        System.arraycopy(tokens, 0, ring[ringNext], 0, len);
+        ringLengths[ringNext] = len;
+        ringNewDialog[ringNext] = newDialog;
+        ringNext = (ringNext + 1) % ring.length;
+    }
+
+    private void write(int[] tokens, int len, boolean newDialog) throws IOException {
+        int recordBytes = 4 + len * (compact ? 2 : 4);
+        // a new dialog goes to the next shard if it may not fit, a long dialog is cut when the shard is full
+        if (shardLines > 0 && (shard.size() + recordBytes > maxShardBytes || newDialog && shard.size() > maxShardBytes * 15 / 16)) {
+            flushShard();
+        }
+        if (!newDialog && !dialogInShard) {
+            newDialog = true; // the dialog continues in this shard, its first line here pairs with nothing
+        }
+        shardData.writeInt(len | (newDialog ? NEW_DIALOG : 0));
+        for (int i = 0; i < len; ++i) {
+            if (compact) {
+                shardData.writeShort(tokens[i]);
+            } else {
+                shardData.writeInt(tokens[i]);
+            }
+        }
+        dialogInShard = true;
+        ++shardLines;
+        ++lines;
+    }
+
+    private void flushShard() throws IOException {
+        shardData.flush();
+        File file = new File(dir, String.format("%s%05d.bin%s", SHARD_PREFIX, shards++, gzip ? ".gz" : ""));
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            OutputStream out = gzip ? new GZIPOutputStream(fos, 1 << 16) : new BufferedOutputStream(fos, 1 << 16);
+            DataOutputStream os = new DataOutputStream(out);
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeBoolean(compact);
+            os.writeInt(shardLines);
+            shard.writeTo(os);
+            os.flush();
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Written " + file + ", " + shardLines + " lines");
+        shard.reset();
+        shardLines = 0;
+        dialogInShard = false;
+    }
+
+    // writes the last shard, the validation lines and the validation pairs
+    public void close() throws IOException {
+        if (shardLines > 0) {
+            flushShard();
+        }
+        TokenCorpus validation = new TokenCorpus(dictSize, ringSize, ringSize * ring[0].length);
+        int[] pairs = new int[Math.max(0, ringSize - 1)];
+        validationPairs = 0;
+        for (int i = 0; i < ringSize; ++i) {
+            int idx = (ringNext + ring.length - ringSize + i) % ring.length;
+            validation.add(ring[idx], 0, ringLengths[idx]);
+            if (i > 0 && !ringNewDialog[idx]) {
+                pairs[validationPairs++] = i - 1;
+            }
+        }
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, VALIDATION))))) {
+            validation.write(os);
+        }
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, VALIDATION_PAIRS))))) {
+            os.writeInt(validationPairs);
+            for (int i = 0; i < validationPairs; ++i) {
+                os.writeInt(pairs[i]);
+            }
+        }
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    // lines written to the shards, the validation lines aren't counted
+    public long lines() {
+        return lines;
+    }
+
+    // the validation pairs written by close(), the pairs across the dialogs aren't counted
+    public int validationPairs() {
+        return validationPairs;
+    }
+
+}
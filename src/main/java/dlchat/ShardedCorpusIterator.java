@@ -0,0 +1,466 @@
+package dlchat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+
+@SuppressWarnings("serial")
+public class ShardedCorpusIterator implements TrainingIterator {
+
+    /*
+     * Streams the line pairs from the shard files written by ShardWriter so the corpus may be much larger than the heap. The shards are
+     * read in an order shuffled by the epoch number. An uncompressed shard is read through a memory mapped window that moves along as
+     * the reading goes (only the page cache holds the data), a .gz shard through a GZIPInputStream. A pair is two adjacent lines of the
+     * same dialog, the pairs never cross the dialogs or the shards.
+     *
+     * The pairs go through a shuffle buffer of a fixed number of pairs: it's filled first, then every batch row is a random pair from the
+     * buffer and its slot is refilled with the next pair read. Together with the shuffled shard order that's close enough to a full
+     * shuffle. The batches are built with BatchBuilder from a small TokenCorpus of the batch pairs and trimmed to the longest lines. So the
+     * heap holds the buffer, the batch arrays and the dictionary, the corpus size doesn't matter.
+     *
+     * The position is the shard (its index in the sorted file list) and the offset in its uncompressed data where the input line of the
+     * earliest read pair still in the shuffle buffer starts, every slot keeps where its pair was read. It's printed after every
+     * macrobatch and setPosition() (dlchat.shift) resumes the epoch from it: the shard order is the same for the same epoch, the shards
+     * before the given one are skipped and the given one is read from the offset. So the pairs that were in the buffer are read again
+     * and none is lost, some of the pairs read after the earliest one were already trained on and are trained on twice. Unlike the batch
+     * number the position doesn't depend on the minibatch size.
+     */
+
+    private static final int WINDOW = 64 << 20; // the mapped part of an uncompressed shard
+    private final File[] shards;
+    private final int batchSize;
+    private final int batchesPerMacrobatch;
+    private final int rowSize;
+    private final BatchBuilder batchBuilder;
+    private final TokenCorpus batchPairs; // the pairs of the batch being built, line 2j is the input and 2j + 1 the response
+    private final int[] batchLines;
+    private final int[] buffer; // the shuffle buffer, slot i has the input at i * 2 * rowSize and the response rowSize later
+    private final int[] inLengths;
+    private final int[] outLengths;
+    private final int[] slotShards; // where the input line of the pair in a slot was read, its index in order
+    private final long[] slotOffsets; // and the offset in that shard
+    private int buffered;
+    private final int[] line;
+    private final int[] previous; // the previous line of the dialog
+    private int previousLength;
+    private long previousOffset;
+    private int[] order; // the shard indexes in the order of the epoch
+    private int orderPos;
+    private ShardReader reader;
+    private Random rng;
+    private int epoch = 1;
+    private int batch;
+    private int macrobatchEnd;
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong steps = new AtomicLong();
+    private final AtomicLong examples = new AtomicLong();
+
+    public ShardedCorpusIterator(File dir, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize, boolean indexedDecoder,
+            int bufferPairs) throws IOException {
+        shards = dir.listFiles(
+                (d, name) -> name.startsWith(ShardWriter.SHARD_PREFIX) && (name.endsWith(".bin") || name.endsWith(".bin.gz")));
+        if (shards == null || shards.length == 0) {
+            throw new IOException("No shards in " + dir);
+        }
+        Arrays.sort(shards);
+        this.batchSize = batchSize;
+        this.batchesPerMacrobatch = batchesPerMacrobatch;
+        this.rowSize = rowSize;
+        batchBuilder = new BatchBuilder(dictSize, rowSize, indexedDecoder);
+        batchPairs = new TokenCorpus(dictSize, 2 * batchSize, 2 * batchSize * rowSize);
+        batchLines = new int[batchSize];
+        buffer = new int[bufferPairs * 2 * rowSize];
+        inLengths = new int[bufferPairs];
+        outLengths = new int[bufferPairs];
+        slotShards = new int[bufferPairs];
+        slotOffsets = new long[bufferPairs];
+        line = new int[rowSize];
+        previous = new int[rowSize];
+        reset();
+    }
+
+    // the dictionary of the sharded corpus
+    public static void readVocabulary(File dir, Vocabulary dict) throws IOException {
+        dict.read(map(new File(dir, ShardWriter.VOCABULARY)));
+    }
+
+    // the held out lines, see readValidationPairs() for the pairs
+    public static TokenCorpus readValidation(File dir) throws IOException {
+        return TokenCorpus.read(map(new File(dir, ShardWriter.VALIDATION)));
+    }
+
+    // the first lines of the validation pairs in the readValidation() corpus, null if the shards were written without them (then every
+    // held out line but the last one is a pair with the next line, across the dialogs too)
+    public static int[] readValidationPairs(File dir) throws IOException {
+        File file = new File(dir, ShardWriter.VALIDATION_PAIRS);
+        if (!file.exists()) {
+            return null;
+        }
+        MappedByteBuffer buf = map(file);
+        int[] pairs = new int[buf.getInt()];
+        buf.asIntBuffer().get(pairs);
+        return pairs;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    @Override
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    @Override
+    public void reset() {
+        closeReader();
+        rng = new Random(epoch);
+        order = new int[shards.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; --i) {
+            int j = rng.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        orderPos = -1;
+        buffered = 0;
+        previousLength = -1;
+        batch = 0;
+        macrobatchEnd = batchesPerMacrobatch;
+    }
+
+    // shard:offset as returned by position()
+    @Override
+    public void setPosition(String position) {
+        reset();
+        String[] parts = position.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("The position must be shard:offset, got " + position);
+        }
+        int shard = Integer.parseInt(parts[0]);
+        long offset = Long.parseLong(parts[1]);
+        for (int i = 0; i < order.length; ++i) {
+            if (order[i] == shard) {
+                try {
+                    open(i);
+                    reader.seek(offset, line);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No shard " + shard + ", there are " + shards.length);
+    }
+
+    // the earliest pair in the shuffle buffer or the line after the last pair read if the buffer is empty
+    @Override
+    public String position() {
+        if (reader == null) {
+            return order[0] + ":0";
+        }
+        int pos = orderPos;
+        long offset = previousLength >= 0 ? previousOffset : reader.offset;
+        for (int i = 0; i < buffered; ++i) {
+            if (slotShards[i] < pos || slotShards[i] == pos && slotOffsets[i] < offset) {
+                pos = slotShards[i];
+                offset = slotOffsets[i];
+            }
+        }
+        return order[pos] + ":" + offset;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return batch < macrobatchEnd && available();
+    }
+
+    @Override
+    public MultiDataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public MultiDataSet next(int num) {
+        batchPairs.clear();
+        int count = 0;
+        int inputLength = 1;
+        int outputLength = 1;
+        long batchTokens = 0;
+        while (count < Math.min(num, batchSize) && available()) {
+            int slot = rng.nextInt(buffered);
+            int base = slot * 2 * rowSize;
+            batchPairs.add(buffer, base, inLengths[slot]);
+            batchPairs.add(buffer, base + rowSize, outLengths[slot]);
+            batchLines[count] = 2 * count;
+            inputLength = Math.max(inputLength, inLengths[slot]);
+            outputLength = Math.max(outputLength, outLengths[slot] + 1);
+            batchTokens += inLengths[slot] + outLengths[slot] + 1;
+            if (!readPair(slot)) {
+                // no more pairs, the last slot takes the place of this one
+                --buffered;
+                System.arraycopy(buffer, buffered * 2 * rowSize, buffer, base, 2 * rowSize);
+                inLengths[slot] = inLengths[buffered];
+                outLengths[slot] = outLengths[buffered];
+                slotShards[slot] = slotShards[buffered];
+                slotOffsets[slot] = slotOffsets[buffered];
+            }
+            ++count;
+        }
+        MultiDataSet data = batchBuilder.build(batchPairs, batchLines, count, inputLength, outputLength);
+        ++batch;
+        tokens.addAndGet(batchTokens);
+        steps.addAndGet((long) count * (inputLength + outputLength));
+        examples.addAndGet(count);
+        return data;
+    }
+
+    // fills the shuffle buffer, false if it's empty and there's nothing left to read
+    private boolean available() {
+        while (buffered < inLengths.length && readPair(buffered)) {
+            ++buffered;
+        }
+        return buffered > 0;
+    }
+
+    // reads the next pair to the slot, false at the end of the epoch
+    private boolean readPair(int slot) {
+        try {
+            while (true) {
+                while (reader == null || !reader.hasNext()) {
+                    if (orderPos + 1 >= order.length) {
+                        return false;
+                    }
+                    open(orderPos + 1);
+                }
+                long offset = reader.offset;
+                int length = reader.next(line, rowSize - 1); // the line must leave room for <eos>, see CorpusProcessor
+                boolean pair = !reader.newDialog && previousLength >= 0;
+                if (pair) {
+                    int base = slot * 2 * rowSize;
+                    System.arraycopy(previous, 0, buffer, base, previousLength);
+                    System.arraycopy(line, 0, buffer, base + rowSize, length);
+                    inLengths[slot] = previousLength;
+                    outLengths[slot] = length;
+                    slotShards[slot] = orderPos;
+                    slotOffsets[slot] = previousOffset;
+                }
+                System.arraycopy(line, 0, previous, 0, length);
+                previousLength = length;
+                previousOffset = offset;
+                if (pair) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void open(int pos) throws IOException {
+        closeReader();
+        orderPos = pos;
+        reader = new ShardReader(shards[order[pos]]);
+        previousLength = -1;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                System.out.println("Can't close the shard: " + e);
+            }
+            reader = null;
+        }
+    }
+
+    @Override
+    public boolean hasNextMacrobatch() {
+        return available();
+    }
+
+    @Override
+    public void nextMacroBatch() {
+        macrobatchEnd = batch + batchesPerMacrobatch;
+    }
+
+    @Override
+    public int batch() {
+        return batch;
+    }
+
+    // by the lines read, the shards are assumed to be of about the same size
+    @Override
+    public double progress() {
+        if (reader == null) {
+            return 0;
+        }
+        return (orderPos + (reader.lines == 0 ? 1 : (double) reader.linesRead / reader.lines)) / shards.length;
+    }
+
+    @Override
+    public long tokens() {
+        return tokens.get();
+    }
+
+    @Override
+    public long steps() {
+        return steps.get();
+    }
+
+    @Override
+    public long examples() {
+        return examples.get();
+    }
+
+    // the batches aren't built ahead here, DL4J's prefetch is used
+    @Override
+    public long consumerWaitNanos() {
+        return 0;
+    }
+
+    @Override
+    public void shutdown() {
+        closeReader();
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+
+    }
+
+    @Override
+    public boolean resetSupported() {
+        // same as CorpusIterator, the epochs are reset manually
+        return false;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    // reads the lines of one shard file, see ShardWriter for the layout
+    private static class ShardReader implements Closeable {
+        private final FileChannel channel; // uncompressed shards are mapped
+        private final DataInputStream gzip; // compressed ones are streamed
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long offset; // in the uncompressed data
+        private final boolean compact;
+        private final int lines;
+        private int linesRead;
+        private boolean newDialog; // the last line read starts a dialog
+
+        public ShardReader(File file) throws IOException {
+            if (file.getName().endsWith(".gz")) {
+                channel = null;
+                gzip = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16), 1 << 16));
+            } else {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                gzip = null;
+            }
+            ensure(9);
+            if (readInt() != ShardWriter.MAGIC || readInt() != ShardWriter.VERSION) {
+                close();
+                throw new IOException(file + " is not a corpus shard");
+            }
+            ensure(5);
+            compact = readByte() != 0;
+            lines = readInt();
+        }
+
+        public boolean hasNext() {
+            return linesRead < lines;
+        }
+
+        // reads the next line, the tokens over max are dropped, returns the number of tokens in line
+        public int next(int[] line, int max) throws IOException {
+            ensure(4);
+            int header = readInt();
+            newDialog = (header & ShardWriter.NEW_DIALOG) != 0;
+            int length = header & ~ShardWriter.NEW_DIALOG;
+            ensure(length * (compact ? 2 : 4));
+            for (int i = 0; i < length; ++i) {
+                int token = compact ? readShort() & 0xffff : readInt();
+                if (i < max) {
+                    line[i] = token;
+                }
+            }
+            ++linesRead;
+            return Math.min(length, max);
+        }
+
+        // skips the lines up to the offset, a position() offset is where a pair's input line starts so the line before isn't needed
+        public void seek(long target, int[] scratch) throws IOException {
+            while (offset < target && hasNext()) {
+                next(scratch, 0);
+            }
+        }
+
+        // makes sure the window has the next bytes, the window is moved to start at the current offset if it doesn't
+        private void ensure(int bytes) throws IOException {
+            if (channel == null || window != null && offset + bytes <= windowStart + window.limit()) {
+                return;
+            }
+            windowStart = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Math.max(WINDOW, bytes), channel.size() - offset));
+            if (bytes > window.limit()) {
+                throw new EOFException("The shard is truncated at " + offset);
+            }
+        }
+
+        private int readInt() throws IOException {
+            int value = gzip != null ? gzip.readInt() : window.getInt((int) (offset - windowStart));
+            offset += 4;
+            return value;
+        }
+
+        private short readShort() throws IOException {
+            short value = gzip != null ? gzip.readShort() : window.getShort((int) (offset - windowStart));
+            offset += 2;
+            return value;
+        }
+
+        private byte readByte() throws IOException {
+            byte value = gzip != null ? gzip.readByte() : window.get((int) (offset - windowStart));
+            offset += 1;
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            if (gzip != null) {
+                gzip.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package dlchat;
+
+import java.util.Arrays;
+
+public class SubwordTokenizer {
+
+    /*
+     * Splits a line into the subwords of a dictionary learned with BpeTrainer. The line is split into words the usual way (see Tokenizer,
+     * the special characters are words too), then every word with WORD_START in front is covered with the longest dictionary pieces from
+     * left to right. The dictionary has every character of the corpus so only a character never seen in the corpus becomes <unk>.
+     *
+     * The pieces of a word are the same every time so they are cached by the word: the words get ids in a private TokenMap (found by
+     * their position in the line without creating a String, like in Tokenizer) and the pieces are an array lookup by that id. The cache
+     * is dropped when it has too many words. The resulting token ids are written to a reusable buffer.
+     *
+     * An instance is not thread safe, use one per thread.
+     */
+
+    public static final String WORD_START = "▁"; // the subwords that start a word have it in front, see Vocabulary.fragment()
+    private static final int MAX_CACHED_WORDS = 1 << 20;
+    private final TokenMap dict;
+    private final int maxPieceLength;
+    private final Tokenizer tokenizer = new Tokenizer(CorpusProcessor.SPECIALS);
+    private final StringBuilder word = new StringBuilder();
+    private TokenMap seen = new TokenMap(1024);
+    private int[][] pieces = new int[1024][]; // by the id in seen
+    private int[] ids = new int[64];
+
+    public SubwordTokenizer(Vocabulary dict) {
+        this.dict = dict.index();
+        int max = 1;
+        for (int id = 0; id < dict.size(); ++id) {
+            max = Math.max(max, dict.word(id).length());
+        }
+        maxPieceLength = max;
+    }
+
+    // writes up to maxTokens token ids to ids() and returns their number, the last word may be cut
+    public int tokenize(CharSequence line, int maxTokens) {
+        if (seen.size() > MAX_CACHED_WORDS) {
+            seen = new TokenMap(1024);
+            pieces = new int[1024][];
+        }
+        // every word is at least one token
+        int words = tokenizer.tokenize(line, seen, true, true, Vocabulary.UNK, maxTokens);
+        int[] wordIds = tokenizer.ids();
+        int count = 0;
+        for (int i = 0; i < words && count < maxTokens; ++i) {
+            int[] wordPieces = pieces(wordIds[i]);
+            int len = Math.min(wordPieces.length, maxTokens - count);
+            if (count + len > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(count + len, ids.length * 2));
+            }
+            System.arraycopy(wordPieces, 0, ids, count, len);
+            count += len;
+        }
+        return count;
+    }
+
+    public int[] ids() {
+        return ids;
+    }
+
+    private int[] pieces(int wordId) {
+        if (wordId >= pieces.length) {
+            pieces = Arrays.copyOf(pieces, Math.max(wordId + 1, pieces.length * 2));
+        }
+        if (pieces[wordId] == null) {
+            pieces[wordId] = encode(seen.key(wordId));
+        }
+        return pieces[wordId];
+    }
+
+    // greedy longest match
+    private int[] encode(String text) {
+        word.setLength(0);
+        word.append(WORD_START).append(text);
+        int len = word.length();
+        int[] result = new int[len];
+        int count = 0;
+        int start = 0;
+        while (start < len) {
+            int end = Math.min(len, start + maxPieceLength);
+            int id = TokenMap.NOT_FOUND;
+            while (end > start && (id = dict.get(word, start, end)) == TokenMap.NOT_FOUND) {
+                --end;
+            }
+            if (id == TokenMap.NOT_FOUND) {
+                id = Vocabulary.UNK;
+                end = start + 1;
+            }
+            result[count++] = id;
+            start = end;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+}
@@ -0,0 +1,185 @@
+package dlchat;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class TokenCorpus {
+
+    /*
+     * All dialog lines are stored in one flat array of token indexes, the line boundaries are kept in a separate offsets array. A
+     * List<List<Double>> costs a boxed Double (plus a reference to it) per token and a list object per line, that's about 20 bytes per token
+     * while here it's 2 bytes if the dictionary fits into 16 bits (it usually does) and 4 bytes otherwise. The accessors never allocate so
+     * the iterator can read the lines both forward and reversed (for the encoder input) without copying them.
+     */
+
+    private static final int INITIAL_LINES = 1024;
+    private static final int INITIAL_TOKENS = INITIAL_LINES * 16;
+    private final boolean compact; // tokens are stored as unsigned 16 bit values
+    private short[] shortTokens;
+    private int[] intTokens;
+    private int[] offsets; // offsets[i] is where the line i starts, offsets[size] is where the last line ends
+    private int size;
+
+    public TokenCorpus(int dictSize) {
+        this(dictSize, INITIAL_LINES, INITIAL_TOKENS);
+    }
+
+    private TokenCorpus(boolean compact, int size, int[] offsets, short[] shortTokens, int[] intTokens) {
+        this.compact = compact;
+        this.size = size;
+        this.offsets = offsets;
+        this.shortTokens = shortTokens;
+        this.intTokens = intTokens;
+    }
+
+    public TokenCorpus(int dictSize, int lines, int tokens) {
+        compact = dictSize <= 1 << 16;
+        if (compact) {
+            shortTokens = new short[Math.max(tokens, 1)];
+        } else {
+            intTokens = new int[Math.max(tokens, 1)];
+        }
+        offsets = new int[Math.max(lines, 1) + 1];
+    }
+
+    public void add(int[] tokens, int off, int len) {
+        if (size + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        int start = offsets[size];
+        ensureTokenCapacity(start + len);
+        if (compact) {
+            for (int i = 0; i < len; ++i) {
+                shortTokens[start + i] = (short) tokens[off + i];
+            }
+        } else {
+            System.arraycopy(tokens, off, intTokens, start, len);
+        }
+        offsets[++size] = start + len;
+    }
+
+    private void ensureTokenCapacity(int capacity) {
+        int length = compact ? shortTokens.length : intTokens.length;
+        if (capacity <= length) {
+            return;
+        }
+        int newLength = Math.max(capacity, length + (length >> 1));
+        if (compact) {
+            shortTokens = Arrays.copyOf(shortTokens, newLength);
+        } else {
+            intTokens = Arrays.copyOf(intTokens, newLength);
+        }
+    }
+
+    public void append(TokenCorpus other) {
+        for (int line = 0; line < other.size; ++line) {
+            if (size + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            int start = offsets[size];
+            int len = other.length(line);
+            ensureTokenCapacity(start + len);
+            for (int i = 0; i < len; ++i) {
+                int token = other.get(line, i);
+                if (compact) {
+                    shortTokens[start + i] = (short) token;
+                } else {
+                    intTokens[start + i] = token;
+                }
+            }
+            offsets[++size] = start + len;
+        }
+    }
+
+    // release the unused capacity once the corpus is complete
+    public void trim() {
+        int tokens = tokenCount();
+        if (compact) {
+            shortTokens = Arrays.copyOf(shortTokens, Math.max(tokens, 1));
+        } else {
+            intTokens = Arrays.copyOf(intTokens, Math.max(tokens, 1));
+        }
+        offsets = Arrays.copyOf(offsets, size + 1);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int tokenCount() {
+        return offsets[size];
+    }
+
+    public int length(int line) {
+        return offsets[line + 1] - offsets[line];
+    }
+
+    public int get(int line, int pos) {
+        return token(offsets[line] + pos);
+    }
+
+    // the line read from the end, the encoder gets its input this way
+    public int getReversed(int line, int pos) {
+        return token(offsets[line + 1] - 1 - pos);
+    }
+
+    private int token(int idx) {
+        if (compact) {
+            return shortTokens[idx] & 0xffff;
+        }
+        return intTokens[idx];
+    }
+
+    // layout: compact flag, line count, token count, offsets, tokens
+    public void write(DataOutput os) throws IOException {
+        int tokens = tokenCount();
+        os.writeBoolean(compact);
+        os.writeInt(size);
+        os.writeInt(tokens);
+        for (int i = 0; i <= size; ++i) {
+            os.writeInt(offsets[i]);
+        }
+        for (int i = 0; i < tokens; ++i) {
+            if (compact) {
+                os.writeShort(shortTokens[i]);
+            } else {
+                os.writeInt(intTokens[i]);
+            }
+        }
+    }
+
+    // reads the corpus written by write(), the buffer is advanced past the corpus data
+    public static TokenCorpus read(ByteBuffer buf) {
+        boolean compact = buf.get() != 0;
+        int size = buf.getInt();
+        int tokens = buf.getInt();
+        int[] offsets = new int[size + 1];
+        buf.asIntBuffer().get(offsets);
+        buf.position(buf.position() + offsets.length * 4);
+        if (compact) {
+            short[] shortTokens = new short[Math.max(tokens, 1)];
+            buf.asShortBuffer().get(shortTokens, 0, tokens);
+            buf.position(buf.position() + tokens * 2);
+            return new TokenCorpus(true, size, offsets, shortTokens, null);
+        }
+        int[] intTokens = new int[Math.max(tokens, 1)];
+        buf.asIntBuffer().get(intTokens, 0, tokens);
+        buf.position(buf.position() + tokens * 4);
+        return new TokenCorpus(false, size, offsets, null, intTokens);
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    public long bytesUsed() {
+        return (long) (compact ? shortTokens.length * 2 : intTokens.length * 4) + offsets.length * 4;
+    }
+
+}
@@ -0,0 +1,147 @@
+package dlchat;
+
+import java.util.Arrays;
+
+public class TokenMap {
+
+    /*
+     * Open addressing String -> int map that can be queried with a part of any CharSequence so the tokenizer doesn't have to create a
+     * String for every word it looks up. A String is only created when a new word is added. The hash is the same as String.hashCode() (with
+     * extra mixing for the table index) so the hashes of the stored keys come for free.
+     *
+     * Words added with add() get dense ids in the order of addition, those can be resolved back with key(). The map is not thread safe
+     * for writing but concurrent reads are fine.
+     */
+
+    private static final float LOAD_FACTOR = 0.5f;
+    public static final int NOT_FOUND = -1;
+    private String[] keys;
+    private int[] values;
+    private int[] slots; // index into keys/values + 1, 0 means an empty slot
+    private int mask;
+    private int size;
+
+    public TokenMap() {
+        this(16);
+    }
+
+    public TokenMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 16) - 1) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = new String[Math.max(expectedSize, 16)];
+        values = new int[keys.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(String key) {
+        return get(key, 0, key.length());
+    }
+
+    public int get(CharSequence s, int start, int end) {
+        int slot = find(s, start, end, hash(s, start, end));
+        int idx = slots[slot];
+        return idx == 0 ? NOT_FOUND : values[idx - 1];
+    }
+
+    // returns the id (order of addition) of the word, the value is set to the id as well if the word is new
+    public int add(CharSequence s, int start, int end) {
+        int slot = find(s, start, end, hash(s, start, end));
+        int idx = slots[slot];
+        if (idx != 0) {
+            return idx - 1;
+        }
+        return insert(slot, s.subSequence(start, end).toString(), size);
+    }
+
+    public int add(String key) {
+        return add(key, 0, key.length());
+    }
+
+    public void put(String key, int value) {
+        int slot = find(key, 0, key.length(), key.hashCode());
+        int idx = slots[slot];
+        if (idx != 0) {
+            values[idx - 1] = value;
+        } else {
+            insert(slot, key, value);
+        }
+    }
+
+    // key by the id returned from add()
+    public String key(int id) {
+        return keys[id];
+    }
+
+    public int value(int id) {
+        return values[id];
+    }
+
+    private int insert(int slot, String key, int value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        slots[slot] = ++size;
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        mask = slots.length - 1;
+        for (int i = 0; i < size; ++i) {
+            int slot = mix(keys[i].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private int find(CharSequence s, int start, int end, int hash) {
+        int slot = mix(hash) & mask;
+        int idx;
+        while ((idx = slots[slot]) != 0) {
+            String key = keys[idx - 1];
+            if (key.hashCode() == hash && equal(key, s, start, end)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean equal(String key, CharSequence s, int start, int end) {
+        if (key.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; ++i) {
+            if (key.charAt(i - start) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; ++i) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,77 @@
+package dlchat;
+
+import java.util.Arrays;
+
+public class Tokenizer {
+
+    /*
+     * Splits a line into words the same way as CorpusProcessor.tokenizeLine() does: spaces and tabs separate the words, special characters
+     * separate them too and may become tokens themselves. Instead of splitting with a regex and cutting substrings it scans the characters
+     * once, classifies them with a lookup table and looks the words up in a TokenMap directly by their position in the line. The resulting
+     * token ids are written to a reusable buffer so nothing is allocated per line except the new words when the map grows.
+     *
+     * An instance is not thread safe, use one per thread.
+     */
+
+    private static final byte WORD = 0;
+    private static final byte SEPARATOR = 1;
+    private static final byte SPECIAL = 2;
+    private final byte[] charClass = new byte[Character.MAX_VALUE + 1];
+    private int[] ids = new int[64];
+
+    public Tokenizer(String specials) {
+        charClass[' '] = SEPARATOR;
+        charClass['\t'] = SEPARATOR;
+        for (int i = 0; i < specials.length(); ++i) {
+            charClass[specials.charAt(i)] = SPECIAL;
+        }
+    }
+
+    /*
+     * Writes up to maxTokens token ids to ids() and returns their number. If addWords is true unknown words are added to the map and get
+     * the new ids (used for counting), otherwise they get the unknown id. Special characters are emitted only if addSpecials is true.
+     */
+    public int tokenize(CharSequence line, TokenMap words, boolean addSpecials, boolean addWords, int unknown, int maxTokens) {
+        int count = 0;
+        int wordStart = -1;
+        int len = line.length();
+        for (int i = 0; i <= len && count < maxTokens; ++i) {
+            byte cls = i < len ? charClass[line.charAt(i)] : SEPARATOR;
+            if (cls == WORD) {
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+                continue;
+            }
+            if (wordStart >= 0) {
+                count = emit(count, lookup(line, wordStart, i, words, addWords, unknown));
+                wordStart = -1;
+            }
+            if (cls == SPECIAL && addSpecials && count < maxTokens) {
+                count = emit(count, lookup(line, i, i + 1, words, addWords, unknown));
+            }
+        }
+        return count;
+    }
+
+    public int[] ids() {
+        return ids;
+    }
+
+    private int lookup(CharSequence line, int start, int end, TokenMap words, boolean addWords, int unknown) {
+        if (addWords) {
+            return words.add(line, start, end);
+        }
+        int id = words.get(line, start, end);
+        return id == TokenMap.NOT_FOUND ? unknown : id;
+    }
+
+    private int emit(int count, int id) {
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+        }
+        ids[count] = id;
+        return count + 1;
+    }
+
+}
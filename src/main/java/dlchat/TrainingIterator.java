@@ -0,0 +1,41 @@
+package dlchat;
+
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+// what the training loop needs from the macrobatch iterators, see CorpusIterator (in memory) and ShardedCorpusIterator (streaming)
+public interface TrainingIterator extends MultiDataSetIterator {
+
+    // call before every epoch, then reset() or setPosition()
+    void setEpoch(int epoch);
+
+    // continues the epoch from the position() printed by a previous run
+    void setPosition(String position);
+
+    // where the epoch is now, to be passed to setPosition() to resume
+    String position();
+
+    boolean hasNextMacrobatch();
+
+    void nextMacroBatch();
+
+    // minibatches returned in this epoch
+    int batch();
+
+    // 0..1, how much of the epoch is done
+    double progress();
+
+    // the number of real tokens (input + output with <eos>) in all batches returned so far
+    long tokens();
+
+    // the number of time steps (input + output) in all batches returned so far, the tokens plus the padding
+    long steps();
+
+    // the number of line pairs in all batches returned so far
+    long examples();
+
+    // the time the consumer waited for the batches built ahead, 0 if they aren't built ahead
+    long consumerWaitNanos();
+
+    void shutdown();
+
+}
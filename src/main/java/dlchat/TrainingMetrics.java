@@ -0,0 +1,247 @@
+package dlchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.bytedeco.javacpp.Pointer;
+
+public class TrainingMetrics implements TrainingMetricsMBean {
+
+    /*
+     * Where the training time goes, per macrobatch. The wall time of a macrobatch is split into:
+     * 
+     * - ETL wait, the time net.fit() was blocked waiting for the batch pipeline to build the next minibatch. With DL4J's own prefetching
+     * (dlchat.batchWorkers=0) the wait happens inside DL4J and isn't visible here, it's counted as fit then. The same for the parallel
+     * training, the replicas build their own batches (see ParallelTrainer).
+     * 
+     * - fit, the rest of net.fit(): forward and backward passes and the parameter updates.
+     * 
+     * - test and checkpoint, the parameter snapshots for the validation and the checkpoint (the validation runs and the zip is written in
+     * the background, see Validator and Checkpointer).
+     * 
+     * Plus the throughput in real tokens and line pairs per second of net.fit(), the heap and the off-heap memory (what JavaCPP has
+     * allocated for ND4J, not the GPU memory) at the end and the off-heap peak during the macrobatch, the garbage collections requested
+     * because of the off-heap use (see MemoryMonitor) and the score after the macrobatch. Every macrobatch is a record in the MetricsLog
+     * file and the last one is published over JMX as dlchat:type=TrainingMetrics.
+     */
+
+    private static final String[] COLUMNS = { "time", "epoch", "batch", "wall_ms", "etl_wait_ms", "fit_ms", "test_ms", "checkpoint_ms",
+            "tokens_per_sec", "examples_per_sec", "heap_used_mb", "heap_max_mb", "offheap_mb", "offheap_max_mb", "offheap_peak_mb",
+            "gc_count", "gc_ms", "score" };
+    private static final long MB = 1 << 20;
+    private final MetricsLog log;
+    private final MemoryMonitor memory;
+    private long start;
+    private long gcCountStart;
+    private long gcNanosStart;
+    private long etlWait;
+    private long fit;
+    private long test;
+    private long checkpoint;
+    private volatile Snapshot last = new Snapshot();
+    private volatile long macrobatches;
+
+    // log may be null to only publish the metrics over JMX
+    public TrainingMetrics(MetricsLog log, MemoryMonitor memory) {
+        this.log = log;
+        this.memory = memory;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("dlchat:type=TrainingMetrics"));
+        } catch (JMException e) {
+            System.out.println("Can't register the metrics MBean: " + e);
+        }
+    }
+
+    public static MetricsLog log(File file, long maxBytes, int keep) {
+        return new MetricsLog(file, maxBytes, keep, COLUMNS);
+    }
+
+    // starts a macrobatch, the times below are added up until finish()
+    public void start() {
+        start = System.nanoTime();
+        etlWait = 0;
+        fit = 0;
+        test = 0;
+        checkpoint = 0;
+        memory.resetPeak();
+        gcCountStart = memory.gcCount();
+        gcNanosStart = memory.gcNanos();
+    }
+
+    // fitNanos is the entire net.fit() call, the ETL wait is subtracted from it
+    public void fit(long fitNanos, long etlWaitNanos) {
+        fit += fitNanos - etlWaitNanos;
+        etlWait += etlWaitNanos;
+    }
+
+    public void test(long nanos) {
+        test += nanos;
+    }
+
+    public void checkpoint(long nanos) {
+        checkpoint += nanos;
+    }
+
+    public void finish(int epoch, int batch, long tokens, long examples, double score) {
+        Snapshot s = new Snapshot();
+        s.epoch = epoch;
+        s.batch = batch;
+        s.wall = System.nanoTime() - start;
+        s.etlWait = etlWait;
+        s.fit = fit;
+        s.test = test;
+        s.checkpoint = checkpoint;
+        long fitWall = fit + etlWait;
+        s.tokensPerSec = fitWall == 0 ? 0 : tokens * 1e9 / fitWall;
+        s.examplesPerSec = fitWall == 0 ? 0 : examples * 1e9 / fitWall;
+        Runtime runtime = Runtime.getRuntime();
+        s.heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        s.heapMax = runtime.maxMemory();
+        s.offHeap = Pointer.totalBytes();
+        s.offHeapMax = Pointer.maxBytes();
+        s.offHeapPeak = memory.peakBytes();
+        s.gcCount = memory.gcCount() - gcCountStart;
+        s.gcNanos = memory.gcNanos() - gcNanosStart;
+        s.score = score;
+        last = s;
+        ++macrobatches;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.write(System.currentTimeMillis(), epoch, batch, ms(s.wall), ms(s.etlWait), ms(s.fit), ms(s.test), ms(s.checkpoint),
+                    Math.round(s.tokensPerSec), Math.round(s.examplesPerSec), s.heapUsed / MB, s.heapMax / MB, s.offHeap / MB,
+                    s.offHeapMax / MB, s.offHeapPeak / MB, s.gcCount, ms(s.gcNanos), score);
+        } catch (IOException e) {
+            System.out.println("Can't write the metrics: " + e);
+        }
+    }
+
+    public String summary() {
+        Snapshot s = last;
+        return String.format("Macrobatch %d ms: ETL wait %d, fit %d, test %d, checkpoint %d; %.1f tokens/sec, %.1f examples/sec; "
+                + "heap %d/%d MB, off-heap %d/%d MB (peak %d MB, %d GC in %d ms)", ms(s.wall), ms(s.etlWait), ms(s.fit), ms(s.test),
+                ms(s.checkpoint), s.tokensPerSec, s.examplesPerSec, s.heapUsed / MB, s.heapMax / MB, s.offHeap / MB, s.offHeapMax / MB,
+                s.offHeapPeak / MB, s.gcCount, ms(s.gcNanos));
+    }
+
+    private static long ms(long nanos) {
+        return nanos / 1000000;
+    }
+
+    // the values of one macrobatch, replaced as a whole so JMX never sees a half updated record
+    private static class Snapshot {
+        private int epoch;
+        private int batch;
+        private long wall;
+        private long etlWait;
+        private long fit;
+        private long test;
+        private long checkpoint;
+        private double tokensPerSec;
+        private double examplesPerSec;
+        private long heapUsed;
+        private long heapMax;
+        private long offHeap;
+        private long offHeapMax;
+        private long offHeapPeak;
+        private long gcCount;
+        private long gcNanos;
+        private double score = Double.NaN;
+    }
+
+    @Override
+    public int getEpoch() {
+        return last.epoch;
+    }
+
+    @Override
+    public int getBatch() {
+        return last.batch;
+    }
+
+    @Override
+    public long getMacrobatches() {
+        return macrobatches;
+    }
+
+    @Override
+    public long getWallMillis() {
+        return ms(last.wall);
+    }
+
+    @Override
+    public long getEtlWaitMillis() {
+        return ms(last.etlWait);
+    }
+
+    @Override
+    public long getFitMillis() {
+        return ms(last.fit);
+    }
+
+    @Override
+    public long getTestMillis() {
+        return ms(last.test);
+    }
+
+    @Override
+    public long getCheckpointMillis() {
+        return ms(last.checkpoint);
+    }
+
+    @Override
+    public double getTokensPerSec() {
+        return last.tokensPerSec;
+    }
+
+    @Override
+    public double getExamplesPerSec() {
+        return last.examplesPerSec;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return last.heapUsed;
+    }
+
+    @Override
+    public long getHeapMaxBytes() {
+        return last.heapMax;
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return last.offHeap;
+    }
+
+    @Override
+    public long getOffHeapMaxBytes() {
+        return last.offHeapMax;
+    }
+
+    @Override
+    public long getOffHeapPeakBytes() {
+        return last.offHeapPeak;
+    }
+
+    @Override
+    public long getGcCount() {
+        return last.gcCount;
+    }
+
+    @Override
+    public long getGcMillis() {
+        return ms(last.gcNanos);
+    }
+
+    @Override
+    public double getScore() {
+        return last.score;
+    }
+
+}
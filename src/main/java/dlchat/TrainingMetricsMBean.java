@@ -0,0 +1,42 @@
+package dlchat;
+
+// the last macrobatch as seen over JMX (jconsole, VisualVM), see TrainingMetrics
+public interface TrainingMetricsMBean {
+
+    int getEpoch();
+
+    int getBatch();
+
+    long getMacrobatches();
+
+    long getWallMillis();
+
+    long getEtlWaitMillis();
+
+    long getFitMillis();
+
+    long getTestMillis();
+
+    long getCheckpointMillis();
+
+    double getTokensPerSec();
+
+    double getExamplesPerSec();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    long getOffHeapBytes();
+
+    long getOffHeapMaxBytes();
+
+    long getOffHeapPeakBytes();
+
+    long getGcCount();
+
+    long getGcMillis();
+
+    double getScore();
+
+}
@@ -0,0 +1,118 @@
+package dlchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class Validator {
+
+    /*
+     * The held out validation lines are evaluated in the background while the training goes on. The training thread only copies the
+     * flattened parameters (to the same array every time, like Checkpointer does), a background thread puts them into its own replica of
+     * the network and computes the perplexity and the token accuracy over all the validation pairs (see PerplexityEvaluator), then
+     * generates a response to a random validation line with the same replica. The results are printed as one block and written to the
+     * MetricsLog file as a time series by the training batch number.
+     *
+     * Only one validation runs at a time, submit() returns false and does nothing if the previous one is still running. Without the
+     * validation pairs (a tiny corpus) submit() only prints that it's skipped.
+     */
+
+    private static final String[] COLUMNS = { "time", "epoch", "batch", "perplexity", "token_accuracy", "tokens", "eval_ms" };
+    private final ComputationGraph replica;
+    private final PerplexityEvaluator evaluator;
+    private final Decoder decoder;
+    private final Sampler sampler;
+    private final Vocabulary dict;
+    private final TokenCorpus corpus;
+    private final int[] pairs;
+    private final int[] reply;
+    private final Random rng = new Random();
+    private final MetricsLog log;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "validator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> pending;
+    private INDArray params;
+
+    // the sampler is used by the validation thread only, log may be null to only print the results
+    public Validator(ComputationGraph net, Vocabulary dict, TokenCorpus corpus, int[] pairs, int batchSize, int rowSize, boolean indexed,
+            Sampler sampler, MetricsLog log) {
+        replica = net.clone();
+        evaluator = new PerplexityEvaluator(corpus, pairs, batchSize, dict.size(), rowSize, indexed);
+        decoder = new Decoder(replica, dict.size());
+        this.sampler = sampler;
+        this.dict = dict;
+        this.corpus = corpus;
+        this.pairs = pairs;
+        this.log = log;
+        reply = new int[rowSize];
+    }
+
+    public static MetricsLog log(File file, long maxBytes, int keep) {
+        return new MetricsLog(file, maxBytes, keep, COLUMNS);
+    }
+
+    public synchronized boolean submit(ComputationGraph net, int epoch, int batch) {
+        if (pending != null && !pending.isDone()) {
+            return false;
+        }
+        if (pairs.length == 0) {
+            System.out.println("No validation pairs, skipping the validation");
+            return true;
+        }
+        // the validation thread may not be attached to the same device, the snapshot goes to the host memory
+        INDArray params = this.params = Checkpointer.snapshot(net.params(), this.params);
+        pending = executor.submit(() -> {
+            try {
+                validate(params, epoch, batch);
+            } catch (RuntimeException e) {
+                System.out.println("Validation failed: " + e);
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    private void validate(INDArray params, int epoch, int batch) {
+        long start = System.nanoTime();
+        replica.setParams(params);
+        PerplexityEvaluator.Result result = evaluator.evaluate(replica);
+        long evalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int line = pairs[rng.nextInt(pairs.length)];
+        int count = decoder.generate(corpus, line, sampler, reply.length, reply);
+        StringBuilder sb = new StringBuilder();
+        sb.append("===================== VALIDATION =====================\n");
+        sb.append(String.format("Epoch %d, batch %d: perplexity %.3f, token accuracy %.2f%% on %d tokens, %d ms%n", epoch, batch,
+                result.perplexity, result.accuracy * 100, result.tokens, evalMs));
+        sb.append("In: ");
+        for (int i = 0; i < corpus.length(line); ++i) {
+            sb.append(dict.fragment(corpus.get(line, i), i == 0));
+        }
+        sb.append("\nExpected: ");
+        for (int i = 0; i < corpus.length(line + 1); ++i) {
+            sb.append(dict.fragment(corpus.get(line + 1, i), i == 0));
+        }
+        sb.append("\nOut: ");
+        sb.append(dict.text(reply, count));
+        sb.append("\n=================== VALIDATION END ===================");
+        System.out.println(sb);
+        if (log == null) {
+            return;
+        }
+        try {
+            log.write(System.currentTimeMillis(), epoch, batch, result.perplexity, result.accuracy, result.tokens, evalMs);
+        } catch (IOException e) {
+            System.out.println("Can't write the validation metrics: " + e);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package dlchat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class Vocabulary {
+
+    /*
+     * Word <-> token id mapping with the word frequencies. The ids are dense and given in the order the words are added, the word by id is
+     * a plain array lookup (see TokenMap) and the lookups by word never box anything. The same class is used to count the frequencies
+     * while processing the corpus, then the final dictionary is selected from it with select().
+     */
+
+    public static final int UNK = 0;
+    public static final int EOS = 1;
+    public static final int GO = 2;
+    private TokenMap index;
+    private long[] freqs = new long[16];
+
+    public Vocabulary() {
+        this(16);
+    }
+
+    public Vocabulary(int expectedSize) {
+        index = new TokenMap(expectedSize);
+    }
+
+    // returns the id of the word, adds it if it's not in the vocabulary yet
+    public int add(String word) {
+        return index.add(word);
+    }
+
+    public int id(String word) {
+        return index.get(word);
+    }
+
+    public String word(int id) {
+        return index.key(id);
+    }
+
+    public boolean contains(String word) {
+        return index.get(word) != TokenMap.NOT_FOUND;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long freq(int id) {
+        return id < freqs.length ? freqs[id] : 0;
+    }
+
+    public void count(int id, long count) {
+        if (id >= freqs.length) {
+            freqs = Arrays.copyOf(freqs, Math.max(id + 1, freqs.length * 2));
+        }
+        freqs[id] += count;
+    }
+
+    // the dictionary is made of subwords (see BpeTrainer), the lines are tokenized with SubwordTokenizer then
+    public boolean isSubword() {
+        return contains(SubwordTokenizer.WORD_START);
+    }
+
+    /*
+     * The text of the token to append to the text of the previous tokens: the words are separated with spaces, a subword is glued to
+     * the previous one unless it starts a word. first is true for the first token of the text (there's no space then).
+     */
+    public String fragment(int id, boolean first) {
+        String word = word(id);
+        if (id > GO && isSubword()) {
+            if (!word.startsWith(SubwordTokenizer.WORD_START)) {
+                return word;
+            }
+            word = word.substring(SubwordTokenizer.WORD_START.length());
+        }
+        return first ? word : " " + word;
+    }
+
+    // the text of the first count tokens, see fragment()
+    public String text(int[] ids, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            sb.append(fragment(ids[i], i == 0));
+        }
+        return sb.toString();
+    }
+
+    // the map to be used by Tokenizer, the values are the token ids
+    public TokenMap index() {
+        return index;
+    }
+
+    // the words in the id order with their frequencies, the models carry the dictionary this way (see InferenceModel, Checkpointer)
+    public void write(DataOutputStream os) throws IOException {
+        os.writeInt(size());
+        for (int id = 0; id < size(); ++id) {
+            byte[] bytes = word(id).getBytes(StandardCharsets.UTF_8);
+            os.writeInt(bytes.length);
+            os.write(bytes);
+            os.writeLong(freq(id));
+        }
+    }
+
+    // adds the words written by write(), to an empty vocabulary they get the same ids
+    public void read(ByteBuffer buf) {
+        int count = buf.getInt();
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < count; ++i) {
+            int len = buf.getInt();
+            if (len > bytes.length) {
+                bytes = new byte[len];
+            }
+            buf.get(bytes, 0, len);
+            count(add(new String(bytes, 0, len, StandardCharsets.UTF_8)), buf.getLong());
+        }
+    }
+
+    /*
+     * Adds maxWords most frequent words from the counted vocabulary that are not here yet. The words of the same frequency are taken in
+     * the alphabetical order. The selected words are then added in the alphabetical order too so the same source and the same maxWords
+     * always give the same dictionary. A bounded heap keeps the maxWords best candidates with the worst one on top so it's O(n log
+     * maxWords) and doesn't sort or group the entire frequency table.
+     */
+    public int select(Vocabulary counted, int maxWords) {
+        int[] heap = new int[maxWords];
+        int heapSize = 0;
+        for (int id = 0; id < counted.size() && maxWords > 0; ++id) {
+            if (contains(counted.word(id))) {
+                continue;
+            }
+            if (heapSize < maxWords) {
+                heap[heapSize] = id;
+                siftUp(counted, heap, heapSize++);
+            } else if (worse(counted, heap[0], id)) {
+                heap[0] = id;
+                siftDown(counted, heap, heapSize);
+            }
+        }
+        String[] selected = new String[heapSize];
+        for (int i = 0; i < heapSize; ++i) {
+            selected[i] = counted.word(heap[i]);
+        }
+        Arrays.sort(selected);
+        for (String word : selected) {
+            add(word);
+        }
+        // keep the frequencies for every word including the specials if they were counted
+        for (int id = 0; id < size(); ++id) {
+            int countedId = counted.id(word(id));
+            if (countedId != TokenMap.NOT_FOUND && freq(id) == 0) {
+                count(id, counted.freq(countedId));
+            }
+        }
+        return heapSize;
+    }
+
+    // a is worse than b if it's less frequent or, for the same frequency, goes later alphabetically
+    private static boolean worse(Vocabulary v, int a, int b) {
+        long fa = v.freq(a);
+        long fb = v.freq(b);
+        if (fa != fb) {
+            return fa < fb;
+        }
+        return v.word(a).compareTo(v.word(b)) > 0;
+    }
+
+    private static void siftUp(Vocabulary v, int[] heap, int pos) {
+        int item = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!worse(v, item, heap[parent])) {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = item;
+    }
+
+    private static void siftDown(Vocabulary v, int[] heap, int size) {
+        int item = heap[0];
+        int pos = 0;
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size && worse(v, heap[child + 1], heap[child])) {
+                ++child;
+            }
+            if (!worse(v, heap[child], item)) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = item;
+    }
+
+}
@@ -0,0 +1,68 @@
+package dlchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.util.ModelSerializer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+public class CheckpointerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the zip written in the background must load with ModelSerializer like the one it writes itself, updater state included
+    @Test
+    public void restoresWithModelSerializer() throws IOException {
+        Main main = TestModels.network(20);
+        ComputationGraph net = main.net;
+        TokenCorpus corpus = TestModels.corpus(main.dict.size(), 9, 1);
+        BatchBuilder builder = new BatchBuilder(main.dict.size(), TestModels.ROW_SIZE, true);
+        net.fit(builder.build(corpus, new int[] { 0, 2, 4, 6 }, 4)); // the updater state is created by the first fit
+
+        File file = new File(folder.getRoot(), "rnn_train.zip");
+        Checkpointer checkpointer = new Checkpointer(file, 2, main.dict);
+        assertTrue(checkpointer.save(net));
+        checkpointer.await();
+
+        ComputationGraph restored = ModelSerializer.restoreComputationGraph(file, true);
+        assertEquals(net.getConfiguration().toJson(), restored.getConfiguration().toJson());
+        assertEquals(net.params(), restored.params());
+        assertEquals(net.getUpdater().getStateViewArray(), restored.getUpdater().getStateViewArray());
+
+        Vocabulary dict = new Vocabulary();
+        assertTrue(Checkpointer.readVocabulary(file, dict));
+        assertEquals(main.dict.size(), dict.size());
+        for (int id = 0; id < dict.size(); ++id) {
+            assertEquals(main.dict.word(id), dict.word(id));
+            assertEquals(main.dict.freq(id), dict.freq(id));
+        }
+    }
+
+    // the second save reuses the snapshot arrays, the previous version becomes the first backup
+    @Test
+    public void rotatesBackups() throws IOException {
+        Main main = TestModels.network(20);
+        File file = new File(folder.getRoot(), "rnn_train.zip");
+        Checkpointer checkpointer = new Checkpointer(file, 2, main.dict);
+        assertTrue(checkpointer.save(main.net));
+        checkpointer.await();
+        INDArray saved = main.net.params().dup();
+        main.net.params().addi(1);
+        assertTrue(checkpointer.save(main.net));
+        checkpointer.await();
+
+        assertEquals(main.net.params(), ModelSerializer.restoreComputationGraph(file, false).params());
+        assertEquals(saved, ModelSerializer.restoreComputationGraph(checkpointer.backup(1), false).params());
+        assertFalse(checkpointer.backup(2).exists());
+    }
+
+}
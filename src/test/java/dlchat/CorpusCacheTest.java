@@ -0,0 +1,118 @@
+package dlchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CorpusCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripCompact() throws IOException {
+        roundTrip(1000);
+    }
+
+    // over 65536 words the tokens don't fit 16 bits
+    @Test
+    public void roundTripWide() throws IOException {
+        roundTrip(70000);
+    }
+
+    @Test
+    public void otherKeyIsRebuilt() throws IOException {
+        File corpusFile = corpusFile();
+        File cacheFile = new File(folder.getRoot(), "corpus.cache");
+        new CorpusCache(cacheFile, CorpusCache.key(corpusFile, 20000, 40)).save(dictionary(10), corpus(10, 100, new Random(1)));
+        assertFalse(new CorpusCache(cacheFile, CorpusCache.key(corpusFile, 20001, 40)).load(new Vocabulary()));
+        Files.write(corpusFile.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        assertFalse(new CorpusCache(cacheFile, CorpusCache.key(corpusFile, 20000, 40)).load(new Vocabulary()));
+        assertFalse(new CorpusCache(new File(folder.getRoot(), "missing"), CorpusCache.key(corpusFile)).load(new Vocabulary()));
+    }
+
+    // the dictionary is built from the corpus after a failed load, it must be empty then whichever section was cut
+    @Test
+    public void truncatedIsRebuilt() throws IOException {
+        File corpusFile = corpusFile();
+        File cacheFile = new File(folder.getRoot(), "corpus.cache");
+        byte[] key = CorpusCache.key(corpusFile);
+        new CorpusCache(cacheFile, key).save(dictionary(10), corpus(10, 100, new Random(1)));
+        long length = cacheFile.length();
+        // 100 cuts into the words, 150 into the frequencies, the rest into the corpus
+        for (long cut : new long[] { length - 10, length - 1000, 150, 100 }) {
+            try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+                file.setLength(cut);
+            }
+            Vocabulary dict = new Vocabulary();
+            assertFalse(new CorpusCache(cacheFile, key).load(dict));
+            assertEquals(0, dict.size());
+        }
+    }
+
+    private void roundTrip(int dictSize) throws IOException {
+        File corpusFile = corpusFile();
+        File cacheFile = new File(folder.getRoot(), "corpus.cache");
+        byte[] key = CorpusCache.key(corpusFile, 20000, 40, "chars");
+        Vocabulary dict = dictionary(dictSize);
+        TokenCorpus corpus = corpus(dictSize, 500, new Random(dictSize));
+        new CorpusCache(cacheFile, key).save(dict, corpus);
+
+        Vocabulary loadedDict = new Vocabulary();
+        CorpusCache cache = new CorpusCache(cacheFile, key);
+        assertTrue(cache.load(loadedDict));
+        assertEquals(dict.size(), loadedDict.size());
+        for (int id = 0; id < dict.size(); ++id) {
+            assertEquals(dict.word(id), loadedDict.word(id));
+            assertEquals(dict.freq(id), loadedDict.freq(id));
+        }
+        TokenCorpus loaded = cache.getCorpus();
+        assertEquals(corpus.size(), loaded.size());
+        assertEquals(corpus.isCompact(), loaded.isCompact());
+        for (int line = 0; line < corpus.size(); ++line) {
+            assertEquals(corpus.length(line), loaded.length(line));
+            for (int pos = 0; pos < corpus.length(line); ++pos) {
+                assertEquals(corpus.get(line, pos), loaded.get(line, pos));
+            }
+        }
+    }
+
+    private File corpusFile() throws IOException {
+        File file = new File(folder.getRoot(), "movie_lines.txt");
+        Files.write(file.toPath(), "L1 +++$+++ u0 +++$+++ m0 +++$+++ A +++$+++ hi there\n".getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static Vocabulary dictionary(int size) {
+        Vocabulary dict = new Vocabulary(size);
+        for (int i = 0; i < size; ++i) {
+            dict.count(dict.add("w" + i + (i % 3 == 0 ? "ё" : "")), i);
+        }
+        return dict;
+    }
+
+    private static TokenCorpus corpus(int dictSize, int lines, Random rng) {
+        TokenCorpus corpus = new TokenCorpus(dictSize);
+        int[] tokens = new int[40];
+        for (int line = 0; line < lines; ++line) {
+            int len = rng.nextInt(tokens.length);
+            for (int i = 0; i < len; ++i) {
+                tokens[i] = rng.nextInt(dictSize);
+            }
+            corpus.add(tokens, 0, len);
+        }
+        return corpus;
+    }
+
+}
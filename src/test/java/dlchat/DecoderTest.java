@@ -0,0 +1,88 @@
+package dlchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecoderTest {
+
+    private static final int MAX_TOKENS = TestModels.ROW_SIZE;
+    private Main main;
+    private Decoder decoder;
+    private Sampler topOne;
+    private final int[] input = { 5, 7, 9 };
+
+    @Before
+    public void setUp() {
+        main = TestModels.network(20);
+        decoder = new Decoder(main.net, main.dict.size(), 1 << 20, 1 << 20);
+        topOne = new Sampler(new Random(1), 1, 1, 1);
+    }
+
+    // the cached response used to be copied only through the listener, without one the hit never returned
+    @Test(timeout = 60000)
+    public void cacheHitWithoutListener() {
+        int[] miss = generate(null);
+        assertNotNull(decoder.cachedResponse(input, MAX_TOKENS));
+        assertArrayEquals(miss, generate(null));
+        assertArrayEquals(miss, generate(null));
+    }
+
+    @Test(timeout = 60000)
+    public void corpusLineHitsTheCache() {
+        TokenCorpus rows = TestModels.corpus(main.dict.size(), 2, 1);
+        int[] result = new int[MAX_TOKENS];
+        int count = decoder.generate(rows, 0, topOne, MAX_TOKENS, result);
+        int[] first = Arrays.copyOf(result, count);
+        Arrays.fill(result, -1);
+        assertEquals(count, decoder.generate(rows, 0, topOne, MAX_TOKENS, result));
+        assertArrayEquals(first, Arrays.copyOf(result, count));
+    }
+
+    // the listener sees the same tokens on a hit as on a miss, in the same order
+    @Test(timeout = 60000)
+    public void cacheHitWithListener() {
+        List<Integer> missTokens = new ArrayList<>();
+        int[] miss = generate(token -> missTokens.add(token));
+        List<Integer> hitTokens = new ArrayList<>();
+        int[] hit = generate(token -> hitTokens.add(token));
+        assertArrayEquals(miss, hit);
+        assertEquals(missTokens, hitTokens);
+        assertEquals(miss.length, hitTokens.size());
+    }
+
+    @Test(timeout = 60000)
+    public void listenerStopsCacheHit() {
+        int[] miss = generate(null);
+        int[] stopped = generate(token -> false);
+        assertArrayEquals(Arrays.copyOf(miss, 1), stopped);
+    }
+
+    // a stopped generation isn't cached, after modelChanged() the response is generated again and is the same
+    @Test(timeout = 60000)
+    public void missAfterStopAndModelChange() {
+        int[] stopped = generate(token -> false);
+        assertEquals(1, stopped.length);
+        assertNull(decoder.cachedResponse(input, MAX_TOKENS));
+        int[] miss = generate(null);
+        decoder.modelChanged();
+        assertNull(decoder.cachedResponse(input, MAX_TOKENS));
+        assertArrayEquals(miss, generate(null));
+    }
+
+    private int[] generate(Decoder.TokenListener listener) {
+        int[] result = new int[MAX_TOKENS];
+        int count = decoder.generate(input, topOne, MAX_TOKENS, result, listener);
+        return Arrays.copyOf(result, count);
+    }
+
+}
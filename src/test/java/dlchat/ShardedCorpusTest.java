@@ -0,0 +1,146 @@
+package dlchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+
+public class ShardedCorpusTest {
+
+    /*
+     * Line i of the corpus is the two tokens 3 + i so a pair read back from a batch tells which lines it was made of. The dialogs are
+     * 1-4 lines of 8 bytes, a dialog always fits the last 1/16 of a 512 bytes shard so none is cut and the pairs the iterator must give
+     * are exactly the adjacent lines of the dialogs written to the shards.
+     */
+
+    private static final int LINES = 600;
+    private static final int HOLD_OUT = 20;
+    private static final int ROW_SIZE = 10;
+    private static final int BUFFER_PAIRS = 32;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final boolean[] newDialog = new boolean[LINES];
+
+    @Test
+    public void readsEveryPairOnce() throws IOException {
+        for (boolean gzip : new boolean[] { false, true }) {
+            File dir = writeShards(gzip);
+            List<Integer> pairs = read(iterator(dir, 1), Integer.MAX_VALUE);
+            Collections.sort(pairs);
+            assertEquals(expectedPairs(), pairs);
+        }
+    }
+
+    @Test
+    public void validationPairsKeepDialogs() throws IOException {
+        File dir = writeShards(false);
+        TokenCorpus validation = ShardedCorpusIterator.readValidation(dir);
+        int first = LINES - HOLD_OUT - 1;
+        assertEquals(HOLD_OUT + 1, validation.size());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < validation.size(); ++i) {
+            assertEquals(3 + first + i, validation.get(i, 0));
+            if (i > 0 && !newDialog[first + i]) {
+                expected.add(i - 1);
+            }
+        }
+        int[] pairs = ShardedCorpusIterator.readValidationPairs(dir);
+        assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), pairs);
+    }
+
+    // the pairs in the shuffle buffer at position() are read again after setPosition(), none of the epoch is lost
+    @Test
+    public void resumesFromPosition() throws IOException {
+        for (boolean gzip : new boolean[] { false, true }) {
+            File dir = writeShards(gzip);
+            for (int batches : new int[] { 0, 1, 5, 20, 50 }) {
+                ShardedCorpusIterator iterator = iterator(dir, 2);
+                List<Integer> before = read(iterator, batches);
+                String position = iterator.position();
+                ShardedCorpusIterator resumed = iterator(dir, 2);
+                resumed.setPosition(position);
+                List<Integer> after = read(resumed, Integer.MAX_VALUE);
+                assertEquals(before.size(), new TreeSet<>(before).size());
+                assertEquals(after.size(), new TreeSet<>(after).size());
+                assertTrue(expectedPairs().containsAll(after));
+                TreeSet<Integer> all = new TreeSet<>(before);
+                all.addAll(after);
+                assertEquals("resumed at " + position + " after " + batches + " batches", new TreeSet<>(expectedPairs()), all);
+            }
+        }
+    }
+
+    private File writeShards(boolean gzip) throws IOException {
+        Random rng = new Random(1);
+        Vocabulary dict = new Vocabulary();
+        for (String special : new String[] { "<unk>", "<eos>", "<go>" }) {
+            dict.add(special);
+        }
+        for (int i = 0; i < LINES; ++i) {
+            dict.add("w" + i);
+        }
+        File dir = folder.newFolder();
+        ShardWriter writer = new ShardWriter(dir, dict, 512, gzip, HOLD_OUT, ROW_SIZE);
+        int dialogLeft = 0;
+        for (int i = 0; i < LINES; ++i) {
+            newDialog[i] = dialogLeft == 0;
+            if (newDialog[i]) {
+                dialogLeft = 1 + rng.nextInt(4);
+            }
+            --dialogLeft;
+            writer.add(new int[] { 3 + i, 3 + i }, 2, newDialog[i]);
+        }
+        writer.close();
+        assertTrue(writer.shards() > 5);
+        assertEquals(LINES - HOLD_OUT - 1, writer.lines());
+        return dir;
+    }
+
+    // the first lines of the pairs in the shards, the adjacent lines of the same dialog before the held out lines
+    private List<Integer> expectedPairs() {
+        List<Integer> pairs = new ArrayList<>();
+        for (int i = 0; i + 1 < LINES - HOLD_OUT - 1; ++i) {
+            if (!newDialog[i + 1]) {
+                pairs.add(i);
+            }
+        }
+        return pairs;
+    }
+
+    private static ShardedCorpusIterator iterator(File dir, int epoch) throws IOException {
+        ShardedCorpusIterator iterator = new ShardedCorpusIterator(dir, 8, Integer.MAX_VALUE, 3 + LINES, ROW_SIZE, true, BUFFER_PAIRS);
+        iterator.setEpoch(epoch);
+        iterator.reset();
+        return iterator;
+    }
+
+    // the first lines of the pairs in the next batches, the response must be the next line
+    private static List<Integer> read(ShardedCorpusIterator iterator, int batches) {
+        List<Integer> pairs = new ArrayList<>();
+        for (int i = 0; i < batches && iterator.hasNext(); ++i) {
+            MultiDataSet batch = iterator.next();
+            INDArray input = batch.getFeatures(0);
+            INDArray prediction = batch.getLabels(0);
+            for (int j = 0; j < input.size(0); ++j) {
+                int line = (int) input.getDouble(j, 0, 0) - 3;
+                assertEquals(line + 1, (int) prediction.getDouble(j, 0, 0) - 3);
+                pairs.add(line);
+            }
+        }
+        return pairs;
+    }
+
+}
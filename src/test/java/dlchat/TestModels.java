@@ -0,0 +1,41 @@
+package dlchat;
+
+import java.util.Random;
+
+// a small dictionary and a fresh network as Main creates it, for the tests that need a real model
+final class TestModels {
+
+    static final int ROW_SIZE = 10;
+
+    private TestModels() {
+    }
+
+    static Main network(int words) {
+        Main main = new Main();
+        main.dict.add("<unk>"); // Vocabulary.UNK
+        main.dict.add("<eos>"); // Vocabulary.EOS
+        main.dict.add("<go>"); // Vocabulary.GO
+        for (int i = 0; i < words; ++i) {
+            main.dict.count(main.dict.add("w" + i), words - i);
+        }
+        main.indexedDecoder = true;
+        main.createComputationGraph();
+        return main;
+    }
+
+    // lines of random words, every line is the response to the previous one
+    static TokenCorpus corpus(int dictSize, int lines, long seed) {
+        Random rng = new Random(seed);
+        TokenCorpus corpus = new TokenCorpus(dictSize);
+        int[] tokens = new int[ROW_SIZE - 1];
+        for (int line = 0; line < lines; ++line) {
+            int len = 1 + rng.nextInt(tokens.length);
+            for (int i = 0; i < len; ++i) {
+                tokens[i] = Vocabulary.GO + 1 + rng.nextInt(dictSize - Vocabulary.GO - 1);
+            }
+            corpus.add(tokens, 0, len);
+        }
+        return corpus;
+    }
+
+}
@@ -0,0 +1,96 @@
+package dlchat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TokenizerTest {
+
+    /*
+     * Tokenizer must split the lines exactly like the regex/substring code it replaced (kept as LegacyTokenizer for the benchmarks, it's
+     * not on the test classpath so the split is repeated here), otherwise the dictionary and the token ids of the same corpus change.
+     */
+
+    private static final String CHARS = "abcxyz'-_&é«» \t \t" + CorpusProcessor.SPECIALS;
+
+    @Test
+    public void splitsLikeLegacy() {
+        Random rng = new Random(1);
+        Tokenizer tokenizer = new Tokenizer(CorpusProcessor.SPECIALS);
+        for (int i = 0; i < 20000; ++i) {
+            String line = randomLine(rng);
+            for (boolean addSpecials : new boolean[] { false, true }) {
+                TokenMap words = new TokenMap();
+                int count = tokenizer.tokenize(line, words, addSpecials, true, Vocabulary.UNK, Integer.MAX_VALUE);
+                List<String> actual = new ArrayList<>();
+                for (int j = 0; j < count; ++j) {
+                    actual.add(words.key(tokenizer.ids()[j]));
+                }
+                assertEquals("'" + line + "'", legacySplit(line, addSpecials), actual);
+            }
+        }
+    }
+
+    @Test
+    public void unknownWordsAndLimit() {
+        Random rng = new Random(2);
+        Tokenizer tokenizer = new Tokenizer(CorpusProcessor.SPECIALS);
+        TokenMap dict = new TokenMap();
+        for (String word : new String[] { "<unk>", "a", "b", "ab", "x'y", ",", ".", "?" }) {
+            dict.add(word);
+        }
+        for (int i = 0; i < 20000; ++i) {
+            String line = randomLine(rng);
+            int max = rng.nextInt(10);
+            List<String> expected = legacySplit(line, true);
+            int count = tokenizer.tokenize(line, dict, true, false, Vocabulary.UNK, max);
+            assertEquals(Math.min(max, expected.size()), count);
+            for (int j = 0; j < count; ++j) {
+                int id = dict.get(expected.get(j));
+                assertEquals(id == TokenMap.NOT_FOUND ? Vocabulary.UNK : id, tokenizer.ids()[j]);
+            }
+        }
+    }
+
+    private static String randomLine(Random rng) {
+        StringBuilder sb = new StringBuilder();
+        int len = rng.nextInt(40);
+        for (int i = 0; i < len; ++i) {
+            // mostly short words of a few letters so the same words repeat
+            sb.append(rng.nextInt(3) > 0 ? CHARS.charAt(rng.nextInt(2)) : CHARS.charAt(rng.nextInt(CHARS.length())));
+        }
+        return sb.toString();
+    }
+
+    private static List<String> legacySplit(String line, boolean addSpecials) {
+        List<String> result = new ArrayList<>();
+        for (String word : line.split("[ \t]")) {
+            boolean specialFound = true;
+            while (specialFound && !word.isEmpty()) {
+                specialFound = false;
+                for (int i = 0; i < word.length(); ++i) {
+                    if (CorpusProcessor.SPECIALS.indexOf(word.charAt(i)) >= 0) {
+                        if (i > 0) {
+                            result.add(word.substring(0, i));
+                        }
+                        if (addSpecials) {
+                            result.add(String.valueOf(word.charAt(i)));
+                        }
+                        word = word.substring(i + 1);
+                        specialFound = true;
+                        break;
+                    }
+                }
+            }
+            if (!word.isEmpty()) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+}
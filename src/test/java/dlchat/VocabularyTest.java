@@ -0,0 +1,108 @@
+package dlchat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class VocabularyTest {
+
+    private static final String[] SPECIALS = { "<unk>", "<eos>", "<go>", ",", ".", "?" };
+
+    // select() must give the same ids as the TreeMap/TreeSet selection it replaced, the saved models depend on it
+    @Test
+    public void selectsLikeTreeMap() {
+        Random rng = new Random(1);
+        Vocabulary counted = new Vocabulary();
+        for (int i = 0; i < 5000; ++i) {
+            StringBuilder word = new StringBuilder();
+            int len = 1 + rng.nextInt(4);
+            for (int j = 0; j < len; ++j) {
+                word.append((char) ('a' + rng.nextInt(8)));
+            }
+            // few distinct frequencies so there are many ties
+            counted.count(counted.add(word.toString()), 1 + rng.nextInt(20));
+        }
+        counted.count(counted.add(","), 100000); // the specials may be counted too, they keep their ids
+        for (int maxWords : new int[] { 1, 10, 500, counted.size() - 1, counted.size() + 10 }) {
+            Vocabulary dict = specials();
+            dict.select(counted, maxWords);
+            List<String> expected = treeMapSelect(counted, maxWords);
+            assertEquals("maxWords " + maxWords, expected.size(), dict.size());
+            for (int id = 0; id < dict.size(); ++id) {
+                assertEquals(expected.get(id), dict.word(id));
+                int countedId = counted.id(dict.word(id));
+                assertEquals(countedId == TokenMap.NOT_FOUND ? 0 : counted.freq(countedId), dict.freq(id));
+            }
+        }
+    }
+
+    @Test
+    public void writeReadRoundTrip() throws IOException {
+        Vocabulary dict = specials();
+        dict.count(dict.add("привет"), 7);
+        dict.count(dict.add("it's"), Long.MAX_VALUE);
+        dict.add(SubwordTokenizer.WORD_START + "x");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            dict.write(os);
+        }
+        Vocabulary read = new Vocabulary();
+        read.read(ByteBuffer.wrap(bos.toByteArray()));
+        assertEquals(dict.size(), read.size());
+        for (int id = 0; id < dict.size(); ++id) {
+            assertEquals(dict.word(id), read.word(id));
+            assertEquals(dict.freq(id), read.freq(id));
+        }
+    }
+
+    private static Vocabulary specials() {
+        Vocabulary dict = new Vocabulary();
+        for (String special : SPECIALS) {
+            dict.add(special);
+        }
+        return dict;
+    }
+
+    // the selection as Main.createDictionary() did it before Vocabulary.select()
+    private static List<String> treeMapSelect(Vocabulary counted, int maxWords) {
+        List<String> result = new ArrayList<>();
+        for (String special : SPECIALS) {
+            result.add(special);
+        }
+        Map<Long, Set<String>> freqMap = new TreeMap<>((o1, o2) -> Long.compare(o2, o1));
+        for (int id = 0; id < counted.size(); ++id) {
+            freqMap.computeIfAbsent(counted.freq(id), f -> new TreeSet<>()).add(counted.word(id));
+        }
+        Set<String> dictSet = new TreeSet<>(result);
+        int cnt = 0;
+        for (Set<String> words : freqMap.values()) {
+            for (String word : words) {
+                if (dictSet.add(word) && ++cnt >= maxWords) {
+                    break;
+                }
+            }
+            if (cnt >= maxWords) {
+                break;
+            }
+        }
+        for (String word : dictSet) {
+            if (!result.contains(word)) {
+                result.add(word);
+            }
+        }
+        return result;
+    }
+
+}